@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright 2018 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.annotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import de.dakror.common.libgdx.io.NBTSerializable;
+
+/**
+ * Generates <code>&lt;Name&gt;NBT</code> serializers for classes annotated with {@link NBTSerializable}, reading and
+ * writing fields directly instead of through reflection. Besides the tree based <code>toNBT</code> and
+ * <code>fromNBT</code> each serializer streams through <code>NBTWriter</code> and <code>NBTReader</code> without
+ * allocating intermediate tags.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+@SupportedAnnotationTypes(value = { "de.dakror.common.libgdx.io.NBTSerializable" })
+@SupportedSourceVersion(value = SourceVersion.RELEASE_7)
+public class NBTSerializableProcessor extends AbstractProcessor {
+    /**
+     * Supported field types with their tag type and the <code>NBTReader</code> method reading them
+     */
+    enum FieldKind {
+        Byte("Byte", "byteValue"),
+        Short("Short", "shortValue"),
+        Int("Int", "intValue"),
+        Long("Long", "longValue"),
+        Float("Float", "floatValue"),
+        Double("Double", "doubleValue"),
+        Boolean("Byte", "byteValue"),
+        String("String", "stringValue"),
+        ByteArray("ByteArray", "byteArrayValue"),
+        ShortArray("ShortArray", "shortArrayValue"),
+        IntArray("IntArray", "intArrayValue"),
+        LongArray("LongArray", "longArrayValue"),
+        FloatArray("FloatArray", "floatArrayValue"),
+        Enum("String", "stringValue"),
+        Compound("Compound", null);
+
+        final java.lang.String tagType;
+        final java.lang.String readMethod;
+
+        FieldKind(java.lang.String tagType, java.lang.String readMethod) {
+            this.tagType = tagType;
+            this.readMethod = readMethod;
+        }
+
+        boolean nullable() {
+            return ordinal() >= String.ordinal();
+        }
+    }
+
+    static class Field {
+        final String name;
+        final String tagName;
+        final FieldKind kind;
+        /**
+         * Qualified type name for enums and nested serializable types
+         */
+        final String type;
+        /**
+         * Serializer of nested serializable types
+         */
+        final String serializer;
+
+        Field(String name, String tagName, FieldKind kind, String type, String serializer) {
+            this.name = name;
+            this.tagName = tagName;
+            this.kind = kind;
+            this.type = type;
+            this.serializer = serializer;
+        }
+
+        /**
+         * @return the expression of the tag value for the field value
+         */
+        String value() {
+            switch (kind) {
+                case Boolean:
+                    return "(byte) (o." + name + " ? 1 : 0)";
+                case Enum:
+                    return "o." + name + ".name()";
+                default:
+                    return "o." + name;
+            }
+        }
+
+        /**
+         * @return the expression of the field value for the tag value <code>v</code>
+         */
+        String fromValue(String v) {
+            switch (kind) {
+                case Boolean:
+                    return v + " != 0";
+                case Enum:
+                    return type + ".valueOf(" + v + ")";
+                default:
+                    return v;
+            }
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(NBTSerializable.class))) {
+            if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+                error(type, "@NBTSerializable requires a concrete class");
+                continue;
+            }
+            if (!hasConstructor(type)) {
+                error(type, "@NBTSerializable requires a non-private no-arg constructor");
+                continue;
+            }
+
+            List<Field> fields = collectFields(type);
+            if (fields == null) continue;
+
+            try {
+                generate(type, fields);
+            } catch (IOException e) {
+                error(type, "Could not generate serializer: " + e);
+            }
+        }
+        return true;
+    }
+
+    protected void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+    }
+
+    protected static String packageOf(TypeElement type) {
+        Element e = type;
+        while (e.getKind() != ElementKind.PACKAGE)
+            e = e.getEnclosingElement();
+        return e.toString();
+    }
+
+    protected static String serializerName(TypeElement type) {
+        String pkg = packageOf(type);
+        String name = type.getQualifiedName().toString();
+        if (!pkg.isEmpty()) name = name.substring(pkg.length() + 1);
+        return name.replace('.', '_') + "NBT";
+    }
+
+    protected static boolean hasConstructor(TypeElement type) {
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) return false;
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements()))
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) return true;
+        return false;
+    }
+
+    /**
+     * @return the serialized fields, superclass fields first, or <code>null</code> if there are unsupported ones
+     */
+    protected List<Field> collectFields(TypeElement type) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement t = type; t != null && !t.getQualifiedName().contentEquals("java.lang.Object");) {
+            hierarchy.add(0, t);
+            TypeMirror s = t.getSuperclass();
+            t = s.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) s).asElement() : null;
+        }
+
+        String pkg = packageOf(type);
+        Map<String, Field> fields = new LinkedHashMap<>();
+        boolean valid = true;
+
+        for (TypeElement t : hierarchy) {
+            for (VariableElement v : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                Set<Modifier> mod = v.getModifiers();
+                if (mod.contains(Modifier.STATIC) || mod.contains(Modifier.TRANSIENT)) continue;
+
+                if (mod.contains(Modifier.PRIVATE) || (!mod.contains(Modifier.PUBLIC) && !packageOf(t).equals(pkg))) {
+                    error(v, "Field is not accessible from " + serializerName(type) + ", make it package-private or transient");
+                    valid = false;
+                    continue;
+                }
+                if (mod.contains(Modifier.FINAL)) {
+                    error(v, "Final fields can not be deserialized, make it transient");
+                    valid = false;
+                    continue;
+                }
+
+                Field f = field(v);
+                if (f == null) {
+                    error(v, "Unsupported field type " + v.asType() + " for @NBTSerializable");
+                    valid = false;
+                    continue;
+                }
+                if (fields.containsKey(f.tagName)) {
+                    error(v, "Duplicate tag name \"" + f.tagName + "\"");
+                    valid = false;
+                    continue;
+                }
+                fields.put(f.tagName, f);
+            }
+        }
+
+        return valid ? new ArrayList<>(fields.values()) : null;
+    }
+
+    protected Field field(VariableElement v) {
+        String name = v.getSimpleName().toString();
+        NBTSerializable.Name n = v.getAnnotation(NBTSerializable.Name.class);
+        String tagName = n != null ? n.value() : name;
+
+        TypeMirror t = v.asType();
+        switch (t.getKind()) {
+            case BYTE:
+                return new Field(name, tagName, FieldKind.Byte, null, null);
+            case SHORT:
+                return new Field(name, tagName, FieldKind.Short, null, null);
+            case INT:
+                return new Field(name, tagName, FieldKind.Int, null, null);
+            case LONG:
+                return new Field(name, tagName, FieldKind.Long, null, null);
+            case FLOAT:
+                return new Field(name, tagName, FieldKind.Float, null, null);
+            case DOUBLE:
+                return new Field(name, tagName, FieldKind.Double, null, null);
+            case BOOLEAN:
+                return new Field(name, tagName, FieldKind.Boolean, null, null);
+            case ARRAY:
+                switch (((ArrayType) t).getComponentType().getKind()) {
+                    case BYTE:
+                        return new Field(name, tagName, FieldKind.ByteArray, null, null);
+                    case SHORT:
+                        return new Field(name, tagName, FieldKind.ShortArray, null, null);
+                    case INT:
+                        return new Field(name, tagName, FieldKind.IntArray, null, null);
+                    case LONG:
+                        return new Field(name, tagName, FieldKind.LongArray, null, null);
+                    case FLOAT:
+                        return new Field(name, tagName, FieldKind.FloatArray, null, null);
+                    default:
+                        return null;
+                }
+            case DECLARED:
+                TypeElement e = (TypeElement) ((DeclaredType) t).asElement();
+                String type = e.getQualifiedName().toString();
+                if (type.equals("java.lang.String")) return new Field(name, tagName, FieldKind.String, null, null);
+                if (e.getKind() == ElementKind.ENUM) return new Field(name, tagName, FieldKind.Enum, type, null);
+                if (e.getAnnotation(NBTSerializable.class) != null) {
+                    String pkg = packageOf(e);
+                    return new Field(name, tagName, FieldKind.Compound, type, (pkg.isEmpty() ? "" : pkg + ".") + serializerName(e));
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    protected static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    protected void generate(TypeElement type, List<Field> fields) throws IOException {
+        String pkg = packageOf(type);
+        String name = serializerName(type);
+        String t = type.getQualifiedName().toString();
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile((pkg.isEmpty() ? "" : pkg + ".") + name, type);
+        try (PrintWriter pw = new PrintWriter(file.openWriter())) {
+            if (!pkg.isEmpty()) pw.println("package " + pkg + ";");
+            pw.println();
+            pw.println("import java.io.IOException;");
+            pw.println();
+            pw.println("import de.dakror.common.libgdx.io.NBT;");
+            pw.println("import de.dakror.common.libgdx.io.NBT.CompoundTag;");
+            pw.println("import de.dakror.common.libgdx.io.NBT.TagType;");
+            pw.println("import de.dakror.common.libgdx.io.NBTReader;");
+            pw.println("import de.dakror.common.libgdx.io.NBTWriter;");
+            pw.println();
+            pw.println("/**");
+            pw.println(" * Generated by " + getClass().getName() + " for {@link " + t + "}");
+            pw.println(" */");
+            pw.println("public final class " + name + " {");
+            pw.println("    private " + name + "() {}");
+            pw.println();
+
+            // tree
+            pw.println("    public static CompoundTag toNBT(" + t + " o) {");
+            pw.println("        return toNBT(o, " + quote(type.getSimpleName().toString()) + ");");
+            pw.println("    }");
+            pw.println();
+            pw.println("    public static CompoundTag toNBT(" + t + " o, String name) {");
+            pw.println("        CompoundTag tag = new CompoundTag(name);");
+            for (Field f : fields) {
+                String add;
+                if (f.kind == FieldKind.Compound) add = "tag.add(" + f.serializer + ".toNBT(o." + f.name + ", " + quote(f.tagName) + "));";
+                else add = "tag.add(new NBT." + f.kind.tagType + "Tag(" + quote(f.tagName) + ", " + f.value() + "));";
+                pw.println("        " + (f.kind.nullable() ? "if (o." + f.name + " != null) " : "") + add);
+            }
+            pw.println("        return tag;");
+            pw.println("    }");
+            pw.println();
+            pw.println("    public static " + t + " fromNBT(CompoundTag tag) {");
+            pw.println("        " + t + " o = new " + t + "();");
+            pw.println("        read(o, tag);");
+            pw.println("        return o;");
+            pw.println("    }");
+            pw.println();
+            pw.println("    /**");
+            pw.println("     * Reads the fields present in <code>tag</code> into <code>o</code>");
+            pw.println("     */");
+            pw.println("    public static void read(" + t + " o, CompoundTag tag) {");
+            for (Field f : fields) {
+                String n = quote(f.tagName);
+                switch (f.kind) {
+                    case Boolean:
+                        pw.println("        o." + f.name + " = " + f.fromValue("tag.Byte(" + n + ", " + f.value() + ")") + ";");
+                        break;
+                    case Enum:
+                        pw.println("        {");
+                        pw.println("            String v = tag.String(" + n + ", null);");
+                        pw.println("            if (v != null) o." + f.name + " = " + f.fromValue("v") + ";");
+                        pw.println("        }");
+                        break;
+                    case Compound:
+                        pw.println("        {");
+                        pw.println("            CompoundTag v = tag.CompoundOpt(" + n + ");");
+                        pw.println("            if (v != null) {");
+                        pw.println("                if (o." + f.name + " == null) o." + f.name + " = new " + f.type + "();");
+                        pw.println("                " + f.serializer + ".read(o." + f.name + ", v);");
+                        pw.println("            }");
+                        pw.println("        }");
+                        break;
+                    default:
+                        pw.println("        o." + f.name + " = tag." + f.kind.tagType + "(" + n + ", o." + f.name + ");");
+                }
+            }
+            pw.println("    }");
+            pw.println();
+
+            // streaming
+            pw.println("    /**");
+            pw.println("     * Writes <code>o</code> as compound, <code>name</code> may be <code>null</code> inside of lists");
+            pw.println("     */");
+            pw.println("    public static void write(" + t + " o, String name, NBTWriter w) throws IOException {");
+            pw.println("        w.beginCompound(name);");
+            for (Field f : fields) {
+                String write;
+                if (f.kind == FieldKind.Compound) write = f.serializer + ".write(o." + f.name + ", " + quote(f.tagName) + ", w);";
+                else write = "w.write" + f.kind.tagType + "(" + quote(f.tagName) + ", " + f.value() + ");";
+                pw.println("        " + (f.kind.nullable() ? "if (o." + f.name + " != null) " : "") + write);
+            }
+            pw.println("        w.end();");
+            pw.println("    }");
+            pw.println();
+            pw.println("    /**");
+            pw.println("     * Reads the compound <code>r</code> is positioned on");
+            pw.println("     */");
+            pw.println("    public static " + t + " read(NBTReader r) throws IOException {");
+            pw.println("        " + t + " o = new " + t + "();");
+            pw.println("        read(o, r);");
+            pw.println("        return o;");
+            pw.println("    }");
+            pw.println();
+            pw.println("    /**");
+            pw.println("     * Reads the compound <code>r</code> is positioned on into <code>o</code>, skipping unknown tags");
+            pw.println("     */");
+            pw.println("    public static void read(" + t + " o, NBTReader r) throws IOException {");
+            pw.println("        r.enterCompound();");
+            pw.println("        while (r.nextTag() != TagType.End) {");
+
+            Map<String, List<Field>> byType = new LinkedHashMap<>();
+            for (Field f : fields) {
+                List<Field> l = byType.get(f.kind.tagType);
+                if (l == null) byType.put(f.kind.tagType, l = new ArrayList<>());
+                l.add(f);
+            }
+
+            if (!byType.isEmpty()) {
+                pw.println("            switch (r.type()) {");
+                for (Map.Entry<String, List<Field>> e : byType.entrySet()) {
+                    pw.println("                case " + e.getKey() + ":");
+                    String prefix = "if";
+                    for (Field f : e.getValue()) {
+                        pw.print("                    " + prefix + " (r.nameEquals(" + quote(f.tagName) + ")) ");
+                        if (f.kind == FieldKind.Compound) {
+                            pw.println("{");
+                            pw.println("                        if (o." + f.name + " == null) o." + f.name + " = new " + f.type + "();");
+                            pw.println("                        " + f.serializer + ".read(o." + f.name + ", r);");
+                            pw.println("                    }");
+                        } else {
+                            pw.println("o." + f.name + " = " + f.fromValue("r." + f.kind.readMethod + "()") + ";");
+                        }
+                        prefix = "else if";
+                    }
+                    pw.println("                    break;");
+                }
+                pw.println("                default:");
+                pw.println("                    break;");
+                pw.println("            }");
+            }
+
+            pw.println("        }");
+            pw.println("    }");
+            pw.println("}");
+        }
+    }
+}
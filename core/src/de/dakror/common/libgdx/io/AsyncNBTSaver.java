@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
+
+import de.dakror.common.Callback;
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.CompressionSettings;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+
+/**
+ * Saves documents in the background. The caller only pays for a snapshot, the uncompressed serialization of the
+ * document (cheap for subtrees with {@link NBT.CollectionTag#cacheEncoding}), while compression and file I/O run on
+ * the executor. Files are replaced atomically by writing a temporary file first.
+ * <p>
+ * A save of a file that is still queued replaces the queued snapshot instead of adding another write, so a slow disk
+ * never builds up a backlog. Callbacks are invoked on the libGDX render thread if there is an application running.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class AsyncNBTSaver {
+    public static class SaveResult {
+        public final File file;
+        /**
+         * The cause if saving failed, otherwise <code>null</code>
+         */
+        public final Throwable error;
+        /**
+         * Uncompressed size of the document
+         */
+        public final int bytes;
+        /**
+         * Time spent on the calling thread, serializing the document
+         */
+        public final long snapshotNanos;
+        /**
+         * Time spent in the background, compressing and writing the file
+         */
+        public final long writeNanos;
+        /**
+         * Number of earlier queued saves of the same file replaced by this one
+         */
+        public final int coalesced;
+
+        public SaveResult(File file, Throwable error, int bytes, long snapshotNanos, long writeNanos, int coalesced) {
+            this.file = file;
+            this.error = error;
+            this.bytes = bytes;
+            this.snapshotNanos = snapshotNanos;
+            this.writeNanos = writeNanos;
+            this.coalesced = coalesced;
+        }
+
+        public boolean success() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return "SaveResult[" + file + ", " + (error != null ? error : "ok") + ", " + bytes + " bytes, snapshot "
+                    + snapshotNanos / 1000 + "us, write " + writeNanos / 1000 + "us, coalesced " + coalesced + "]";
+        }
+    }
+
+    protected class SaveTask implements Runnable {
+        final File file;
+        CompressionSettings compression;
+        byte[] data;
+        int length;
+        long snapshotNanos;
+        int coalesced;
+        final Array<Callback<SaveResult>> callbacks = new Array<>();
+
+        SaveTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock(file)) {
+                try {
+                    synchronized (queued) {
+                        queued.remove(file);
+                    }
+
+                    long time = System.nanoTime();
+                    Throwable error = null;
+                    try {
+                        writeAtomically(file, data, length, compression);
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+
+                    report(new SaveResult(file, error, length, snapshotNanos, System.nanoTime() - time, coalesced), callbacks);
+                } finally {
+                    // still holding the lock, so a later save of the file can not have picked it up yet
+                    finished(file);
+                }
+            }
+        }
+    }
+
+    protected final ExecutorService executor;
+    protected final boolean ownsExecutor;
+
+    protected final ObjectMap<File, SaveTask> queued = new ObjectMap<>();
+    protected final ConcurrentHashMap<File, Object> locks = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<File, Integer> sizeHints = new ConcurrentHashMap<>();
+
+    /**
+     * Number of submitted saves that have not finished yet, guarded by <code>queued</code>
+     */
+    protected int pending;
+    protected boolean closed;
+
+    /**
+     * Saves on a single daemon thread
+     */
+    public AsyncNBTSaver() {
+        this(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AsyncNBTSaver");
+                t.setDaemon(true);
+                return t;
+            }
+        }), true);
+    }
+
+    /**
+     * @param executor may run several saves at once, saves of the same file are still written in order
+     */
+    public AsyncNBTSaver(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    protected AsyncNBTSaver(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public void save(File file, CompoundTag data, CompressionType compression, Callback<SaveResult> callback) throws IOException {
+        save(file, data, new CompressionSettings(compression), callback);
+    }
+
+    /**
+     * Snapshots <code>data</code> and queues writing it to <code>file</code>. The document may be modified as soon as
+     * this returns.
+     *
+     * @param callback notified once the file is written or failed, may be <code>null</code>
+     * @throws IOException if the document could not be serialized
+     * @throws IllegalStateException if the saver has been shut down
+     */
+    public void save(File file, CompoundTag data, CompressionSettings compression, Callback<SaveResult> callback)
+            throws IOException {
+        file = file.getAbsoluteFile();
+
+        long time = System.nanoTime();
+        Integer hint = sizeHints.get(file);
+        OptimizedByteArrayOutputStream baos = new OptimizedByteArrayOutputStream(hint != null ? hint : 8192);
+        NBT.write(baos, data, new CompressionSettings(CompressionType.Uncompressed).compact(compression.compact));
+        long snapshotNanos = System.nanoTime() - time;
+
+        synchronized (queued) {
+            if (closed) throw new IllegalStateException("AsyncNBTSaver has been shut down");
+            sizeHints.put(file, baos.size());
+
+            SaveTask task = queued.get(file);
+            boolean submit = task == null;
+            if (submit) {
+                task = new SaveTask(file);
+                queued.put(file, task);
+            } else {
+                task.coalesced++;
+            }
+
+            task.data = baos.getBuffer();
+            task.length = baos.size();
+            task.compression = compression;
+            task.snapshotNanos = snapshotNanos;
+            if (callback != null) task.callbacks.add(callback);
+
+            if (submit) {
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    // a rejected task would otherwise swallow every later save of this file
+                    queued.remove(file);
+                    sizeHints.remove(file);
+                    throw e;
+                }
+                pending++;
+            }
+        }
+    }
+
+    /**
+     * Called after a task has finished. Drops the lock and size hint of <code>file</code> unless another save of it is
+     * queued, and wakes up {@link #shutdown(long, TimeUnit)}
+     */
+    protected void finished(File file) {
+        synchronized (queued) {
+            if (!queued.containsKey(file)) {
+                locks.remove(file);
+                sizeHints.remove(file);
+            }
+            pending--;
+            queued.notifyAll();
+        }
+    }
+
+    protected Object lock(File file) {
+        Object lock = locks.get(file);
+        if (lock == null) {
+            Object l = new Object();
+            lock = locks.putIfAbsent(file, l);
+            if (lock == null) lock = l;
+        }
+        return lock;
+    }
+
+    /**
+     * Compresses the snapshot into a temporary file next to <code>file</code>, syncs it to disk and moves it over
+     * <code>file</code>
+     */
+    protected void writeAtomically(File file, byte[] data, int length, CompressionSettings compression) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            // the compression streams close their target, but the file has to be synced first
+            OutputStream os = NBT.compress(new FilterOutputStream(fos) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, compression);
+
+            if (compression.hashFooter) {
+                XXHashOutputStream hos = new XXHashOutputStream(os, 65536);
+                hos.write(data, 0, length);
+                NBT.writeHashFooter(hos);
+            } else {
+                os.write(data, 0, length);
+            }
+            os.close();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    protected void report(final SaveResult result, final Array<Callback<SaveResult>> callbacks) {
+        if (callbacks.size == 0) return;
+
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                for (Callback<SaveResult> c : callbacks)
+                    c.call(result);
+            }
+        };
+
+        if (Gdx.app != null) Gdx.app.postRunnable(r);
+        else r.run();
+    }
+
+    /**
+     * @return the number of saves waiting to be written
+     */
+    public int queuedSaves() {
+        synchronized (queued) {
+            return queued.size;
+        }
+    }
+
+    /**
+     * Stops accepting saves and waits for the queued ones to be written. Only shuts down executors created by this
+     * saver, for others it just waits until all of its saves have finished.
+     *
+     * @return <code>true</code> if all saves were written before the timeout elapsed
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (queued) {
+            closed = true;
+        }
+
+        if (ownsExecutor) {
+            executor.shutdown();
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (queued) {
+            while (pending > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(queued, left);
+            }
+        }
+        return true;
+    }
+}
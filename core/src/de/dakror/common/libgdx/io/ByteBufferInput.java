@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link DataInput} reading big-endian values directly from a (heap, direct or memory-mapped) {@link ByteBuffer}
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class ByteBufferInput implements DataInput {
+    protected final ByteBuffer buf;
+
+    /**
+     * @param buffer read from its current position to its limit. The buffer itself is not modified
+     */
+    public ByteBufferInput(ByteBuffer buffer) {
+        buf = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    public int position() {
+        return buf.position();
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+
+    protected void require(int bytes) throws EOFException {
+        if (buf.remaining() < bytes) throw new EOFException();
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        buf.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        int skip = Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + skip);
+        return skip;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return buf.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        return buf.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        require(2);
+        return buf.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        return buf.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        return buf.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4);
+        return buf.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(8);
+        return buf.getDouble();
+    }
+
+    /**
+     * Reads bytes up to a <code>\n</code>, <code>\r</code> or <code>\r\n</code> terminator, mapping each one to a char
+     * like {@link DataInputStream#readLine()}
+     *
+     * @return the line without its terminator, or <code>null</code> if the end of the buffer was reached before any byte
+     */
+    @Override
+    public String readLine() throws IOException {
+        if (!buf.hasRemaining()) return null;
+
+        StringBuilder sb = new StringBuilder();
+        while (buf.hasRemaining()) {
+            int c = buf.get() & 0xFF;
+            if (c == '\n') break;
+            if (c == '\r') {
+                if (buf.hasRemaining() && buf.get(buf.position()) == '\n') buf.get();
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
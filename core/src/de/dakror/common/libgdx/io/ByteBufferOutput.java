@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.DataOutput;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link DataOutput} writing big-endian values directly into a (heap or direct) {@link ByteBuffer}. When the buffer is
+ * full, it is flushed to the sink in one large write, or grown if there is no sink.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class ByteBufferOutput implements DataOutput, Flushable {
+    protected ByteBuffer buf;
+    protected final OutputStream os;
+    protected final WritableByteChannel channel;
+    protected byte[] transfer;
+    protected long flushed;
+
+    /**
+     * Writes into <code>buffer</code> from its current position, growing it when full. See {@link #buffer()}
+     */
+    public ByteBufferOutput(ByteBuffer buffer) {
+        this(buffer, null, null);
+    }
+
+    /**
+     * Collects the writes in <code>buffer</code>, which is cleared first, and writes them to <code>os</code> in chunks
+     */
+    public ByteBufferOutput(ByteBuffer buffer, OutputStream os) {
+        this(buffer, os, null);
+        buf.clear();
+    }
+
+    public ByteBufferOutput(ByteBuffer buffer, WritableByteChannel channel) {
+        this(buffer, null, channel);
+        buf.clear();
+    }
+
+    protected ByteBufferOutput(ByteBuffer buffer, OutputStream os, WritableByteChannel channel) {
+        buf = buffer.order(ByteOrder.BIG_ENDIAN);
+        this.os = os;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the buffer, which may have been replaced by a larger one. Without sink, it contains all bytes written
+     *         from its initial position up to its current position
+     */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * @return the number of bytes written, including the ones already flushed
+     */
+    public long size() {
+        return flushed + buf.position();
+    }
+
+    /**
+     * @return the buffer with at least <code>bytes</code> remaining, flushing or growing it if needed
+     */
+    public ByteBuffer ensure(int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            if (os != null || channel != null) flush();
+            if (buf.remaining() < bytes) {
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(buf.capacity() * 2L, (long) buf.position() + bytes));
+                if (capacity - buf.position() < bytes) throw new IOException("Buffer size exceeded");
+                ByteBuffer b = buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+                buf.flip();
+                b.put(buf);
+                buf = b;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Writes the buffered bytes to the sink and clears the buffer. Does nothing without sink
+     */
+    @Override
+    public void flush() throws IOException {
+        if (os == null && channel == null) return;
+        buf.flip();
+        flushed += buf.remaining();
+        if (channel != null) {
+            while (buf.hasRemaining())
+                channel.write(buf);
+        } else if (buf.hasArray()) {
+            os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            if (transfer == null) transfer = new byte[8192];
+            while (buf.hasRemaining()) {
+                int n = Math.min(transfer.length, buf.remaining());
+                buf.get(transfer, 0, n);
+                os.write(transfer, 0, n);
+            }
+        }
+        buf.clear();
+    }
+
+    /**
+     * Writes the string prefixed by its length as unsigned short, if it consists of ASCII characters only
+     *
+     * @return <code>false</code> if nothing was written, as the string contains other characters
+     */
+    public boolean writeASCII(String s) throws IOException {
+        int len = s.length();
+        if (len > 0xFFFF) return false;
+        ensure(len + 2);
+        int start = buf.position();
+        buf.position(start + 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                buf.position(start);
+                return false;
+            }
+            buf.put((byte) c);
+        }
+        buf.putShort(start, (short) len);
+        return true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensure(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.capacity() && (os != null || channel != null)) {
+            // bypass the buffer for large arrays
+            flush();
+            flushed += len;
+            if (channel != null) {
+                ByteBuffer wrap = ByteBuffer.wrap(b, off, len);
+                while (wrap.hasRemaining())
+                    channel.write(wrap);
+            } else {
+                os.write(b, off, len);
+            }
+            return;
+        }
+        ensure(len).put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        ensure(1).put((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        ensure(2).putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        ensure(2).putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        ensure(4).putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        ensure(8).putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        ensure(4).putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        ensure(8).putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+            write(s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+            writeChar(s.charAt(i));
+    }
+
+    /**
+     * Writes the string in modified UTF-8, like {@link java.io.DataOutputStream#writeUTF(String)}
+     */
+    @Override
+    public void writeUTF(String s) throws IOException {
+        int len = s.length(), bytes = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        if (bytes > 0xFFFF) throw new UTFDataFormatException("encoded string too long: " + bytes + " bytes");
+
+        ensure(bytes + 2).putShort((short) bytes);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buf.put((byte) (0xC0 | c >> 6));
+                buf.put((byte) (0x80 | c & 0x3F));
+            } else {
+                buf.put((byte) (0xE0 | c >> 12));
+                buf.put((byte) (0x80 | c >> 6 & 0x3F));
+                buf.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
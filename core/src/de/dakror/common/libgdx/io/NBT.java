@@ -20,34 +20,69 @@ import java.io.BufferedReader;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
-import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.badlogic.gdx.Application.ApplicationType;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.ObjectIntMap;
 import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.Pool;
 import com.badlogic.gdx.utils.Pool.Poolable;
 import com.badlogic.gdx.utils.Pools;
+import com.badlogic.gdx.utils.ReflectionPool;
+import com.badlogic.gdx.utils.StreamUtils;
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
 
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FrameInputStream;
 import net.jpountz.lz4.LZ4FrameOutputStream;
 import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
 import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.xxhash.StreamingXXHash64;
 
 /**
  * @author Maximilian Stark | Dakror
@@ -76,10 +111,128 @@ public class NBT {
 
     static final TagType[] reverseTags = new TagType[256];
 
+    static {
+        for (TagType t : TagType.values())
+            reverseTags[t.value] = t;
+    }
+
+    /**
+     * Little-endian magic number starting every LZ4 frame
+     */
+    protected static final int LZ4_MAGIC = 0x184D2204;
+
+    /**
+     * Marks the optional footer holding the xxHash64 of the document, "XH64"
+     */
+    protected static final int HASH_FOOTER = 0x58483634;
+
+    /**
+     * Starts every document in the compact format, "NBT", followed by {@link #COMPACT_VERSION}. The first byte is no
+     * valid tag type, so compact documents are told apart from legacy ones by it
+     */
+    protected static final int COMPACT_MAGIC = 0x4E4254;
+    /**
+     * Version 2: varints and name dictionary, version 3: columnar lists of compounds
+     */
+    protected static final int COMPACT_VERSION = 3;
+
+    /**
+     * Element type of compact lists of compounds stored as one column per field
+     */
+    protected static final byte COLUMNAR = (byte) (0x80 | 10);
+
     public enum CompressionType {
         Uncompressed,
         Fast,
-        Small
+        Small,
+        /**
+         * Same LZ4 frame format as {@link #Fast}, but the independent blocks are compressed and decompressed
+         * concurrently on the common {@link java.util.concurrent.ForkJoinPool}
+         */
+        FastParallel
+    }
+
+    /**
+     * Tunable parameters of a {@link CompressionType}, trading CPU time for size per kind of save.
+     * <p>
+     * Measured on a 48 MB document of terrain arrays and entity compounds, single core, lz4-java 1.5.0:
+     *
+     * <pre>
+     * type   level  block  write MB/s  read MB/s  ratio
+     * Fast      -1    4MB         377       1871   0.62
+     * Fast       9    4MB           8       1931   0.53
+     * Fast      17    4MB           4       1779   0.52
+     * Fast      -1   64KB         423       1351   0.71
+     * Small      1      -          38        170   0.48
+     * Small     -1      -          15        192   0.46
+     * Small      9      -           2        185   0.46
+     * </pre>
+     */
+    public static class CompressionSettings {
+        /**
+         * Uses the default level of the compression: the fast LZ4 compressor or {@link Deflater#DEFAULT_COMPRESSION}
+         */
+        public static final int DEFAULT_LEVEL = -1;
+
+        public final CompressionType type;
+        public int level = DEFAULT_LEVEL;
+        public BLOCKSIZE blockSize = BLOCKSIZE.SIZE_4MB;
+        public boolean contentChecksum;
+        public boolean hashFooter;
+        public boolean compact;
+
+        public CompressionSettings(CompressionType type) {
+            this.type = type;
+        }
+
+        /**
+         * @param level for LZ4 a high compression level from 1 to 17, for GZIP a {@link Deflater} level from 0 to 9
+         */
+        public CompressionSettings level(int level) {
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Maximum LZ4 block size. Larger blocks compress better, smaller blocks need less memory and parallelize better
+         */
+        public CompressionSettings blockSize(BLOCKSIZE blockSize) {
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Whether LZ4 frames end with a checksum of the uncompressed content. GZIP always has one
+         */
+        public CompressionSettings contentChecksum(boolean contentChecksum) {
+            this.contentChecksum = contentChecksum;
+            return this;
+        }
+
+        /**
+         * Whether the document is followed by the xxHash64 of its serialized bytes (see
+         * {@link NBT#hash(CompoundTag, CompressionSettings)}), which is verified when reading. Works with any compression and is ignored by older readers
+         */
+        public CompressionSettings hashFooter(boolean hashFooter) {
+            this.hashFooter = hashFooter;
+            return this;
+        }
+
+        /**
+         * Whether the document is written in the compact format: variable-length integers and lengths, and tag names
+         * stored once per document and referenced by index. Detected automatically when reading
+         */
+        public CompressionSettings compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        protected LZ4Compressor compressor() {
+            LZ4Factory factory = Gdx.app == null || Gdx.app.getType() == ApplicationType.Desktop
+                    ? LZ4Factory.fastestInstance()
+                    : IOUtils.getLZ4();
+            return level > 0 ? factory.highCompressor(level) : factory.fastCompressor();
+        }
     }
 
     public enum TagType {
@@ -107,13 +260,11 @@ public class NBT {
             value = (byte) val;
             this.clazz = clazz;
             this.width = width;
-
-            reverseTags[value] = this;
         }
     }
 
     public static abstract class Tag implements Poolable {
-        static int idCounter = 0;
+        static final AtomicInteger idCounter = new AtomicInteger();
         public final int id;
         public final TagType type;
         public String name;
@@ -121,16 +272,25 @@ public class NBT {
 
         public Tag(TagType type) {
             this.type = type;
-            this.id = idCounter++;
+            this.id = idCounter.getAndIncrement();
         }
 
         @Override
         public void reset() {
             name = null;
+            parent = null;
         }
 
         public void free() {
-            Pools.free(this);
+            nbt.get().free(this);
+        }
+
+        /**
+         * Invalidates the cached encodings of all ancestors. Called by the setters, must be called manually after
+         * modifying <code>data</code> directly
+         */
+        public void markDirty() {
+            if (parent != null) parent.markDirty();
         }
 
         @Override
@@ -196,6 +356,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(byte data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -231,6 +396,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(short data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -266,6 +436,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(int data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -301,6 +476,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(long data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -336,6 +516,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(float data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -371,6 +556,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(double data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -406,6 +596,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(byte[] data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -441,6 +636,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(String data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -464,6 +664,24 @@ public class NBT {
     }
 
     public static abstract class CollectionTag extends Tag {
+        /**
+         * Whether this subtree changed since it was last written. Implies that all ancestors are dirty as well
+         */
+        protected boolean dirty = true;
+
+        /**
+         * Whether the encoded payload of this subtree is kept and reused for writing while it is not dirty. Meant for
+         * large, rarely changing subtrees like the chunks of a world, as the bytes are held in memory.
+         */
+        public boolean cacheEncoding;
+
+        protected byte[] encoded;
+
+        /**
+         * Counts structural changes in this subtree, see {@link NBTPath.Index}
+         */
+        protected int version;
+
         public CollectionTag(TagType type) {
             super(type);
         }
@@ -472,35 +690,42 @@ public class NBT {
         public void reset() {
             super.reset();
             parent = null;
+            dirty = true;
+            cacheEncoding = false;
+            encoded = null;
         }
 
-        public abstract void add(Tag tag);
+        @Override
+        public void markDirty() {
+            if (!dirty) {
+                dirty = true;
+                super.markDirty();
+            }
+        }
 
-        public abstract boolean remove(Tag tag);
+        public boolean isDirty() {
+            return dirty;
+        }
 
-        protected abstract Iterable<Tag> getData();
+        /**
+         * Called when children are added, removed or replaced. Must be called manually after modifying
+         * <code>data</code> directly
+         */
+        public void structureChanged() {
+            for (CollectionTag t = this; t != null; t = t.parent)
+                t.version++;
+        }
 
-        protected void getChildren(Filter[] query, int index, Set<Tag> targets) {
-            Filter f = query[index];
+        public void setCacheEncoding(boolean cacheEncoding) {
+            this.cacheEncoding = cacheEncoding;
+            if (!cacheEncoding) encoded = null;
+        }
 
-            for (Tag t : getData()) {
-                if (f.matches(t)) {
-                    if (index == query.length - 1) {
-                        targets.add(t);
-                    }
+        public abstract void add(Tag tag);
 
-                    if (t instanceof CollectionTag) {
-                        if (index < query.length - 1) {
-                            ((CollectionTag) t).getChildren(query, index + 1, targets);
-                        }
+        public abstract boolean remove(Tag tag);
 
-                        ((CollectionTag) t).getChildren(query, index, targets);
-                    }
-                } else if (t instanceof CollectionTag) {
-                    ((CollectionTag) t).getChildren(query, index, targets);
-                }
-            }
-        }
+        protected abstract Iterable<Tag> getData();
 
         /**
          * Query syntax:
@@ -515,20 +740,23 @@ public class NBT {
          * @return
          */
         public Set<Tag> query(String queryString) {
-            String[] parts = queryString.split(" ");
-            Set<Tag> results = new HashSet<>();
-
-            // parse query
-            Filter[] query = new Filter[parts.length];
-
-            int index = 0;
-            for (String s : parts) {
-                query[index++] = parseFilter(s);
-            }
+            return compileQuery(queryString).run(this);
+        }
 
-            getChildren(query, 0, results);
+        /**
+         * Passes the matches of the query to <code>visitor</code> in document order, without collecting them
+         *
+         * @return <code>false</code> if the visitor stopped the query
+         */
+        public boolean query(String queryString, Query.Visitor visitor) {
+            return compileQuery(queryString).visit(this, visitor);
+        }
 
-            return results;
+        /**
+         * @return the first match of the query in document order or <code>null</code>
+         */
+        public Tag queryFirst(String queryString) {
+            return compileQuery(queryString).first(this);
         }
     }
 
@@ -566,13 +794,13 @@ public class NBT {
         protected String toString(String pad) {
             StringBuilder sb = new StringBuilder();
             sb.append(super.toString(pad));
-            sb.append(data.size);
+            sb.append(size());
             sb.append(" entries of type ");
             sb.append(elementType);
             sb.append("\r\n");
             sb.append(pad);
             sb.append("{\r\n");
-            for (Tag t : data) {
+            for (Tag t : getData()) {
                 sb.append(t.toString(pad + "  "));
             }
             sb.append(pad);
@@ -581,16 +809,63 @@ public class NBT {
         }
 
         @Override
-        protected boolean dataEquals(Tag o) {
-            return data.equals(((ListTag) o).data);
+        public boolean equals(Object obj) {
+            // packed and regular lists are equal if their elements are
+            if (obj instanceof ListTag) {
+                return (name == null ? ((Tag) obj).name == null : name.equals(((Tag) obj).name)) && dataEquals((Tag) obj);
+            }
+            return false;
         }
 
         @Override
-        public void add(Tag tag) {
+        protected boolean dataEquals(Tag o) {
+            ListTag l = (ListTag) o;
+            if (!(this instanceof PackedListTag || l instanceof PackedListTag)) return data.equals(l.data);
+
+            if (size() != l.size()) return false;
+            for (int i = 0; i < size(); i++)
+                if (!get(i).equals(l.get(i))) return false;
+            return true;
+        }
+
+        public int size() {
+            return data.size;
+        }
+
+        public Tag get(int index) {
+            return data.get(index);
+        }
+
+        /**
+         * Replaces the element at <code>index</code>
+         */
+        public void set(int index, Tag tag) {
+            checkType(tag);
+            tag.parent = this;
+            data.set(index, tag);
+            markDirty();
+            structureChanged();
+        }
+
+        /**
+         * @return the index of the element, as used by {@link IndexFilter}
+         */
+        public int indexOf(Tag tag) {
+            return data.indexOf(tag, false);
+        }
+
+        protected void checkType(Tag tag) {
             if (tag.type != elementType)
                 throw new RuntimeException("Incompatible Tag Types in List Tag, wanted \"" + elementType + "\", got \"" + tag.type + "\"");
+        }
+
+        @Override
+        public void add(Tag tag) {
+            checkType(tag);
             tag.parent = this;
             data.add(tag);
+            markDirty();
+            structureChanged();
         }
 
         @Override
@@ -603,6 +878,8 @@ public class NBT {
             for (Iterator<Tag> iter = data.iterator(); iter.hasNext();) {
                 if (iter.next().equals(tag)) {
                     iter.remove();
+                    markDirty();
+                    structureChanged();
                     return true;
                 }
             }
@@ -616,355 +893,764 @@ public class NBT {
         }
     }
 
-    public static class CompoundTag extends CollectionTag {
-        public final ObjectMap<String, Tag> data;
+    /**
+     * List of Byte, Short, Int, Long, Float or Double elements backed by a primitive array instead of one tag per
+     * element. It has the same wire format as a regular list and is written with bulk transfers. The inherited
+     * <code>data</code> stays empty: elements are accessed through the typed getters and setters, while
+     * {@link #get(int)} and iteration return tags holding a copy of the value. Read into with
+     * {@link NBT#packLists(boolean)}.
+     */
+    public static class PackedListTag extends ListTag {
+        protected Object values;
+        protected int size;
+        protected Tag[] views;
+
+        public PackedListTag() {
+            super();
+        }
 
-        public CompoundTag() {
-            super(TagType.Compound);
-            data = new ObjectMap<>();
+        public PackedListTag(String name, TagType elementType) {
+            super(name, checkPackable(elementType));
+            values = newArray(elementType, 8);
         }
 
-        public CompoundTag(String name) {
-            super(TagType.Compound);
-            data = new ObjectMap<>();
-            this.name = name;
+        public PackedListTag(String name, byte[] values) {
+            this(name, TagType.Byte, values, values.length);
         }
 
-        @Override
-        public void reset() {
-            super.reset();
-            data.clear();
+        public PackedListTag(String name, short[] values) {
+            this(name, TagType.Short, values, values.length);
         }
 
-        @Override
-        public void free() {
-            for (Tag t : data.values())
-                t.free();
-            super.free();
+        public PackedListTag(String name, int[] values) {
+            this(name, TagType.Int, values, values.length);
         }
 
-        @Override
-        protected String toString(String pad) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(super.toString(pad));
-            sb.append(data.size);
-            sb.append(" entries\r\n");
-            sb.append(pad);
-            sb.append("{\r\n");
-            for (Tag t : data.values()) {
-                sb.append(t.toString(pad + "  "));
-            }
-            sb.append(pad);
-            sb.append("}\r\n");
-            return sb.toString();
+        public PackedListTag(String name, long[] values) {
+            this(name, TagType.Long, values, values.length);
         }
 
-        @Override
-        protected boolean dataEquals(Tag o) {
-            return data.equals(((CompoundTag) o).data);
+        public PackedListTag(String name, float[] values) {
+            this(name, TagType.Float, values, values.length);
         }
 
-        @Override
-        public void add(Tag tag) {
-            if (tag.name == null)
-                throw new RuntimeException("Compound Tag expects named tags, got no name");
-            tag.parent = this;
-            data.put(tag.name, tag);
+        public PackedListTag(String name, double[] values) {
+            this(name, TagType.Double, values, values.length);
         }
 
-        @Override
-        public boolean remove(Tag tag) {
-            return data.remove(tag.name) != null;
+        /**
+         * Wraps <code>values</code> without copying, of which the first <code>size</code> elements are used
+         */
+        protected PackedListTag(String name, TagType elementType, Object values, int size) {
+            super(name, checkPackable(elementType));
+            this.values = values;
+            this.size = size;
         }
 
-        public boolean has(String name) {
-            return data.containsKey(name);
+        public static boolean isPackable(TagType type) {
+            return type != null && type.ordinal() >= TagType.Byte.ordinal() && type.ordinal() <= TagType.Double.ordinal();
         }
 
-        /////////////////////////////////////////
+        static TagType checkPackable(TagType type) {
+            if (!isPackable(type)) throw new IllegalArgumentException("Can not pack elements of type " + type);
+            return type;
+        }
 
-        public byte Byte(String name) throws NBTException {
-            return ((ByteTag) getWithException(name, TagType.Byte)).data;
+        static Object newArray(TagType type, int length) {
+            switch (type) {
+                case Byte:
+                    return new byte[length];
+                case Short:
+                    return new short[length];
+                case Int:
+                    return new int[length];
+                case Long:
+                    return new long[length];
+                case Float:
+                    return new float[length];
+                default:
+                    return new double[length];
+            }
         }
 
-        public byte Byte(String name, byte defaultValue) {
-            ByteTag tag = ((ByteTag) get(name, TagType.Byte));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        @Override
+        public void reset() {
+            super.reset();
+            values = null;
+            size = 0;
+            views = null;
         }
 
-        public short Short(String name) throws NBTException {
-            return ((ShortTag) getWithException(name, TagType.Short)).data;
+        @Override
+        public void markDirty() {
+            views = null;
+            super.markDirty();
         }
 
-        public short Short(String name, short defaultValue) {
-            ShortTag tag = ((ShortTag) get(name, TagType.Short));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        /**
+         * @return the backing array, of which the first {@link #size()} elements are used
+         */
+        public Object array() {
+            return values;
         }
 
-        public int Int(String name) throws NBTException {
-            return ((IntTag) getWithException(name, TagType.Int)).data;
+        @Override
+        public int size() {
+            return size;
         }
 
-        public int Int(String name, int defaultValue) {
-            IntTag tag = ((IntTag) get(name, TagType.Int));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        protected void checkIndex(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
         }
 
-        public long Long(String name) throws NBTException {
-            return ((LongTag) getWithException(name, TagType.Long)).data;
+        /**
+         * Grows the backing array for one more element and returns the index of it
+         */
+        protected int append() {
+            int length = values != null ? java.lang.reflect.Array.getLength(values) : 0;
+            if (size == length) {
+                Object a = newArray(elementType, Math.max(8, length * 2));
+                if (size > 0) System.arraycopy(values, 0, a, 0, size);
+                values = a;
+            }
+            markDirty();
+            return size++;
         }
 
-        public long Long(String name, long defaultValue) {
-            LongTag tag = ((LongTag) get(name, TagType.Long));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public byte getByte(int index) {
+            checkIndex(index);
+            return ((byte[]) values)[index];
         }
 
-        public float Float(String name) throws NBTException {
-            return ((FloatTag) getWithException(name, TagType.Float)).data;
+        public short getShort(int index) {
+            checkIndex(index);
+            return ((short[]) values)[index];
         }
 
-        public float Float(String name, float defaultValue) {
-            FloatTag tag = ((FloatTag) get(name, TagType.Float));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public int getInt(int index) {
+            checkIndex(index);
+            return ((int[]) values)[index];
         }
 
-        public double Double(String name) throws NBTException {
-            return ((DoubleTag) getWithException(name, TagType.Double)).data;
+        public long getLong(int index) {
+            checkIndex(index);
+            return ((long[]) values)[index];
         }
 
-        public double Double(String name, double defaultValue) {
-            DoubleTag tag = ((DoubleTag) get(name, TagType.Double));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public float getFloat(int index) {
+            checkIndex(index);
+            return ((float[]) values)[index];
         }
 
-        public byte[] ByteArray(String name) throws NBTException {
-            return ((ByteArrayTag) getWithException(name, TagType.ByteArray)).data;
+        public double getDouble(int index) {
+            checkIndex(index);
+            return ((double[]) values)[index];
         }
 
-        public byte[] ByteArray(String name, byte[] defaultValue) {
-            ByteArrayTag tag = ((ByteArrayTag) get(name, TagType.ByteArray));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public void setByte(int index, byte value) {
+            checkIndex(index);
+            ((byte[]) values)[index] = value;
+            markDirty();
         }
 
-        public String String(String name) throws NBTException {
-            return ((StringTag) getWithException(name, TagType.String)).data;
+        public void setShort(int index, short value) {
+            checkIndex(index);
+            ((short[]) values)[index] = value;
+            markDirty();
         }
 
-        public String String(String name, String defaultValue) {
-            StringTag tag = ((StringTag) get(name, TagType.String));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public void setInt(int index, int value) {
+            checkIndex(index);
+            ((int[]) values)[index] = value;
+            markDirty();
         }
 
-        public ListTag List(String name) throws NBTException {
-            return (ListTag) getWithException(name, TagType.List);
+        public void setLong(int index, long value) {
+            checkIndex(index);
+            ((long[]) values)[index] = value;
+            markDirty();
         }
 
-        public ListTag List(String name, TagType elementType) throws NBTException {
-            ListTag tag = (ListTag) getWithException(name, TagType.List);
-            if (tag.elementType != elementType)
-                throw new NBTException("Invalid element tag type! Expected \"" + type + "\", got \"" + tag.type + "\"");
-            return tag;
+        public void setFloat(int index, float value) {
+            checkIndex(index);
+            ((float[]) values)[index] = value;
+            markDirty();
         }
 
-        public CompoundTag Compound(String name) throws NBTException {
-            return (CompoundTag) getWithException(name, TagType.Compound);
+        public void setDouble(int index, double value) {
+            checkIndex(index);
+            ((double[]) values)[index] = value;
+            markDirty();
         }
 
-        public CompoundTag CompoundOpt(String name) {
-            CompoundTag tag = (CompoundTag) get(name, TagType.Compound);
-            return tag;
+        public void addByte(byte value) {
+            int i = append();
+            ((byte[]) values)[i] = value;
         }
 
-        public int[] IntArray(String name) throws NBTException {
-            return ((IntArrayTag) getWithException(name, TagType.IntArray)).data;
+        public void addShort(short value) {
+            int i = append();
+            ((short[]) values)[i] = value;
         }
 
-        public int[] IntArray(String name, int[] defaultValue) {
-            IntArrayTag tag = ((IntArrayTag) get(name, TagType.IntArray));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public void addInt(int value) {
+            int i = append();
+            ((int[]) values)[i] = value;
         }
 
-        public long[] LongArray(String name) throws NBTException {
-            return ((LongArrayTag) getWithException(name, TagType.LongArray)).data;
+        public void addLong(long value) {
+            int i = append();
+            ((long[]) values)[i] = value;
         }
 
-        public long[] LongArray(String name, long[] defaultValue) {
-            LongArrayTag tag = ((LongArrayTag) get(name, TagType.LongArray));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        public void addFloat(float value) {
+            int i = append();
+            ((float[]) values)[i] = value;
         }
 
-        public short[] ShortArray(String name) throws NBTException {
-            return ((ShortArrayTag) getWithException(name, TagType.ShortArray)).data;
+        public void addDouble(double value) {
+            int i = append();
+            ((double[]) values)[i] = value;
         }
 
-        public short[] ShortArray(String name, short[] defaultValue) {
-            ShortArrayTag tag = ((ShortArrayTag) get(name, TagType.ShortArray));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        /**
+         * Appends the value of the tag, the tag itself is not kept
+         */
+        @Override
+        public void add(Tag tag) {
+            checkType(tag);
+            store(append(), tag);
         }
 
-        public float[] FloatArray(String name) throws NBTException {
-            return ((FloatArrayTag) getWithException(name, TagType.FloatArray)).data;
+        @Override
+        public void set(int index, Tag tag) {
+            checkType(tag);
+            checkIndex(index);
+            store(index, tag);
+            markDirty();
         }
 
-        public float[] FloatArray(String name, float[] defaultValue) {
-            FloatArrayTag tag = ((FloatArrayTag) get(name, TagType.FloatArray));
-            if (tag == null) return defaultValue;
-            return tag.data;
+        protected void store(int index, Tag tag) {
+            switch (elementType) {
+                case Byte:
+                    ((byte[]) values)[index] = ((ByteTag) tag).data;
+                    break;
+                case Short:
+                    ((short[]) values)[index] = ((ShortTag) tag).data;
+                    break;
+                case Int:
+                    ((int[]) values)[index] = ((IntTag) tag).data;
+                    break;
+                case Long:
+                    ((long[]) values)[index] = ((LongTag) tag).data;
+                    break;
+                case Float:
+                    ((float[]) values)[index] = ((FloatTag) tag).data;
+                    break;
+                default:
+                    ((double[]) values)[index] = ((DoubleTag) tag).data;
+                    break;
+            }
         }
 
-        /////////////////////////////////////////
-
-        public Tag get(String name) {
-            return data.get(name);
+        /**
+         * @return a new, detached tag holding the value at <code>index</code>, modifying it does not modify the list
+         */
+        @Override
+        public Tag get(int index) {
+            checkIndex(index);
+            switch (elementType) {
+                case Byte:
+                    return new ByteTag(null, ((byte[]) values)[index]);
+                case Short:
+                    return new ShortTag(null, ((short[]) values)[index]);
+                case Int:
+                    return new IntTag(null, ((int[]) values)[index]);
+                case Long:
+                    return new LongTag(null, ((long[]) values)[index]);
+                case Float:
+                    return new FloatTag(null, ((float[]) values)[index]);
+                default:
+                    return new DoubleTag(null, ((double[]) values)[index]);
+            }
         }
 
-        public Tag getWithException(String name) throws NBTException {
-            Tag t = data.get(name);
-            if (t == null) throw new NBTException("No tag found with name \"" + name + "\"");
-            return t;
+        /**
+         * Removes the first element equal to the tag, which has to be unnamed like the elements
+         */
+        @Override
+        public boolean remove(Tag tag) {
+            if (tag == null || tag.type != elementType || tag.name != null) return false;
+            for (int i = 0; i < size; i++) {
+                if (valueEquals(i, tag)) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    markDirty();
+                    return true;
+                }
+            }
+            return false;
         }
 
-        public Tag get(String name, TagType type) {
-            Tag tag = data.get(name);
-            if (tag == null) return null;
-            if (tag.type != type) return null;
-            return tag;
+        protected boolean valueEquals(int index, Tag tag) {
+            switch (elementType) {
+                case Byte:
+                    return ((byte[]) values)[index] == ((ByteTag) tag).data;
+                case Short:
+                    return ((short[]) values)[index] == ((ShortTag) tag).data;
+                case Int:
+                    return ((int[]) values)[index] == ((IntTag) tag).data;
+                case Long:
+                    return ((long[]) values)[index] == ((LongTag) tag).data;
+                case Float:
+                    return ((float[]) values)[index] == ((FloatTag) tag).data;
+                default:
+                    return ((double[]) values)[index] == ((DoubleTag) tag).data;
+            }
         }
 
-        public Tag getWithException(String name, TagType type) throws NBTException {
-            Tag tag = data.get(name);
-            if (tag == null) throw new NBTException("No tag found with name \"" + name + "\"");
-            if (tag.type != type)
-                throw new NBTException("Invalid tag type! Expected \"" + type + "\", got \"" + tag.type + "\"");
-            return tag;
+        @Override
+        public int indexOf(Tag tag) {
+            if (views != null) {
+                for (int i = 0; i < views.length; i++)
+                    if (views[i] == tag) return i;
+            }
+            return -1;
         }
 
+        /**
+         * Iterates views of the elements, which stay the same until the list is modified. Unlike the copies returned by
+         * {@link #get(int)}, views have the list as parent, so paths and queries can resolve them
+         */
         @Override
         protected Iterable<Tag> getData() {
-            return data.values();
+            if (views == null) {
+                views = new Tag[size];
+                for (int i = 0; i < size; i++) {
+                    views[i] = get(i);
+                    views[i].parent = this;
+                }
+            }
+            return Arrays.asList(views);
+        }
+
+        @Override
+        protected boolean dataEquals(Tag o) {
+            if (!(o instanceof PackedListTag) || elementType != ((ListTag) o).elementType) return super.dataEquals(o);
+
+            PackedListTag p = (PackedListTag) o;
+            if (size != p.size) return false;
+            for (int i = 0; i < size; i++) {
+                boolean equal;
+                switch (elementType) {
+                    case Byte:
+                        equal = ((byte[]) values)[i] == ((byte[]) p.values)[i];
+                        break;
+                    case Short:
+                        equal = ((short[]) values)[i] == ((short[]) p.values)[i];
+                        break;
+                    case Int:
+                        equal = ((int[]) values)[i] == ((int[]) p.values)[i];
+                        break;
+                    case Long:
+                        equal = ((long[]) values)[i] == ((long[]) p.values)[i];
+                        break;
+                    case Float:
+                        equal = ((float[]) values)[i] == ((float[]) p.values)[i];
+                        break;
+                    default:
+                        equal = ((double[]) values)[i] == ((double[]) p.values)[i];
+                        break;
+                }
+                if (!equal) return false;
+            }
+            return true;
         }
 
+        /**
+         * @return a copy of the used part of the backing array
+         */
         @Override
         public Object data() {
-            return data;
+            Object a = newArray(elementType, size);
+            System.arraycopy(values, 0, a, 0, size);
+            return a;
+        }
+
+        public PackedListTag copy() {
+            return new PackedListTag(name, elementType, data(), size);
         }
     }
 
-    public static class IntArrayTag extends Tag {
-        public int[] data;
+    public static class CompoundTag extends CollectionTag {
+        public final ObjectMap<String, Tag> data;
 
-        public IntArrayTag() {
-            super(TagType.IntArray);
+        public CompoundTag() {
+            super(TagType.Compound);
+            data = new ObjectMap<>();
         }
 
-        public IntArrayTag(String name, int[] data) {
-            super(TagType.IntArray);
-            this.data = data;
+        public CompoundTag(String name) {
+            super(TagType.Compound);
+            data = new ObjectMap<>();
             this.name = name;
         }
 
         @Override
         public void reset() {
             super.reset();
-            data = null;
+            data.clear();
+        }
+
+        @Override
+        public void free() {
+            for (Tag t : data.values())
+                t.free();
+            super.free();
         }
 
         @Override
         protected String toString(String pad) {
-            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+            StringBuilder sb = new StringBuilder();
+            sb.append(super.toString(pad));
+            sb.append(data.size);
+            sb.append(" entries\r\n");
+            sb.append(pad);
+            sb.append("{\r\n");
+            for (Tag t : data.values()) {
+                sb.append(t.toString(pad + "  "));
+            }
+            sb.append(pad);
+            sb.append("}\r\n");
+            return sb.toString();
         }
 
         @Override
         protected boolean dataEquals(Tag o) {
-            return Arrays.equals(data, ((IntArrayTag) o).data);
+            return data.equals(((CompoundTag) o).data);
         }
 
         @Override
-        public Object data() {
-            return data;
+        public void add(Tag tag) {
+            if (tag.name == null)
+                throw new RuntimeException("Compound Tag expects named tags, got no name");
+            tag.parent = this;
+            data.put(tag.name, tag);
+            markDirty();
+            structureChanged();
         }
-    }
-
-    public static class LongArrayTag extends Tag {
-        public long[] data;
 
-        public LongArrayTag() {
-            super(TagType.LongArray);
+        @Override
+        public boolean remove(Tag tag) {
+            if (data.remove(tag.name) == null) return false;
+            markDirty();
+            structureChanged();
+            return true;
         }
 
-        public LongArrayTag(String name, long[] data) {
-            super(TagType.LongArray);
-            this.data = data;
-            this.name = name;
+        public boolean has(String name) {
+            return data.containsKey(name);
         }
 
-        @Override
-        public void reset() {
-            super.reset();
-            data = null;
-        }
+        /////////////////////////////////////////
 
-        @Override
-        protected String toString(String pad) {
-            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+        public byte Byte(String name) throws NBTException {
+            return ((ByteTag) getWithException(name, TagType.Byte)).data;
         }
 
-        @Override
-        protected boolean dataEquals(Tag o) {
-            return Arrays.equals(data, ((LongArrayTag) o).data);
+        public byte Byte(String name, byte defaultValue) {
+            ByteTag tag = ((ByteTag) get(name, TagType.Byte));
+            if (tag == null) return defaultValue;
+            return tag.data;
         }
 
-        @Override
-        public Object data() {
-            return data;
+        public short Short(String name) throws NBTException {
+            return ((ShortTag) getWithException(name, TagType.Short)).data;
         }
-    }
-
-    public static class ShortArrayTag extends Tag {
-        public short[] data;
 
-        public ShortArrayTag() {
-            super(TagType.ShortArray);
+        public short Short(String name, short defaultValue) {
+            ShortTag tag = ((ShortTag) get(name, TagType.Short));
+            if (tag == null) return defaultValue;
+            return tag.data;
         }
 
-        public ShortArrayTag(String name, short[] data) {
-            super(TagType.ShortArray);
-            this.data = data;
-            this.name = name;
+        public int Int(String name) throws NBTException {
+            return ((IntTag) getWithException(name, TagType.Int)).data;
         }
 
-        @Override
-        public void reset() {
-            super.reset();
-            data = null;
+        public int Int(String name, int defaultValue) {
+            IntTag tag = ((IntTag) get(name, TagType.Int));
+            if (tag == null) return defaultValue;
+            return tag.data;
         }
 
-        @Override
-        protected String toString(String pad) {
-            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+        public long Long(String name) throws NBTException {
+            return ((LongTag) getWithException(name, TagType.Long)).data;
         }
 
-        @Override
-        protected boolean dataEquals(Tag o) {
-            return Arrays.equals(data, ((ShortArrayTag) o).data);
+        public long Long(String name, long defaultValue) {
+            LongTag tag = ((LongTag) get(name, TagType.Long));
+            if (tag == null) return defaultValue;
+            return tag.data;
         }
 
-        @Override
-        public Object data() {
-            return data;
+        public float Float(String name) throws NBTException {
+            return ((FloatTag) getWithException(name, TagType.Float)).data;
         }
-    }
+
+        public float Float(String name, float defaultValue) {
+            FloatTag tag = ((FloatTag) get(name, TagType.Float));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public double Double(String name) throws NBTException {
+            return ((DoubleTag) getWithException(name, TagType.Double)).data;
+        }
+
+        public double Double(String name, double defaultValue) {
+            DoubleTag tag = ((DoubleTag) get(name, TagType.Double));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public byte[] ByteArray(String name) throws NBTException {
+            return ((ByteArrayTag) getWithException(name, TagType.ByteArray)).data;
+        }
+
+        public byte[] ByteArray(String name, byte[] defaultValue) {
+            ByteArrayTag tag = ((ByteArrayTag) get(name, TagType.ByteArray));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public String String(String name) throws NBTException {
+            return ((StringTag) getWithException(name, TagType.String)).data;
+        }
+
+        public String String(String name, String defaultValue) {
+            StringTag tag = ((StringTag) get(name, TagType.String));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public ListTag List(String name) throws NBTException {
+            return (ListTag) getWithException(name, TagType.List);
+        }
+
+        public ListTag List(String name, TagType elementType) throws NBTException {
+            ListTag tag = (ListTag) getWithException(name, TagType.List);
+            if (tag.elementType != elementType)
+                throw new NBTException("Invalid element tag type! Expected \"" + type + "\", got \"" + tag.type + "\"");
+            return tag;
+        }
+
+        public CompoundTag Compound(String name) throws NBTException {
+            return (CompoundTag) getWithException(name, TagType.Compound);
+        }
+
+        public CompoundTag CompoundOpt(String name) {
+            CompoundTag tag = (CompoundTag) get(name, TagType.Compound);
+            return tag;
+        }
+
+        public int[] IntArray(String name) throws NBTException {
+            return ((IntArrayTag) getWithException(name, TagType.IntArray)).data;
+        }
+
+        public int[] IntArray(String name, int[] defaultValue) {
+            IntArrayTag tag = ((IntArrayTag) get(name, TagType.IntArray));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public long[] LongArray(String name) throws NBTException {
+            return ((LongArrayTag) getWithException(name, TagType.LongArray)).data;
+        }
+
+        public long[] LongArray(String name, long[] defaultValue) {
+            LongArrayTag tag = ((LongArrayTag) get(name, TagType.LongArray));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public short[] ShortArray(String name) throws NBTException {
+            return ((ShortArrayTag) getWithException(name, TagType.ShortArray)).data;
+        }
+
+        public short[] ShortArray(String name, short[] defaultValue) {
+            ShortArrayTag tag = ((ShortArrayTag) get(name, TagType.ShortArray));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        public float[] FloatArray(String name) throws NBTException {
+            return ((FloatArrayTag) getWithException(name, TagType.FloatArray)).data;
+        }
+
+        public float[] FloatArray(String name, float[] defaultValue) {
+            FloatArrayTag tag = ((FloatArrayTag) get(name, TagType.FloatArray));
+            if (tag == null) return defaultValue;
+            return tag.data;
+        }
+
+        /////////////////////////////////////////
+
+        public Tag get(String name) {
+            return data.get(name);
+        }
+
+        public Tag getWithException(String name) throws NBTException {
+            Tag t = data.get(name);
+            if (t == null) throw new NBTException("No tag found with name \"" + name + "\"");
+            return t;
+        }
+
+        public Tag get(String name, TagType type) {
+            Tag tag = data.get(name);
+            if (tag == null) return null;
+            if (tag.type != type) return null;
+            return tag;
+        }
+
+        public Tag getWithException(String name, TagType type) throws NBTException {
+            Tag tag = data.get(name);
+            if (tag == null) throw new NBTException("No tag found with name \"" + name + "\"");
+            if (tag.type != type)
+                throw new NBTException("Invalid tag type! Expected \"" + type + "\", got \"" + tag.type + "\"");
+            return tag;
+        }
+
+        @Override
+        protected Iterable<Tag> getData() {
+            return data.values();
+        }
+
+        @Override
+        public Object data() {
+            return data;
+        }
+    }
+
+    public static class IntArrayTag extends Tag {
+        public int[] data;
+
+        public IntArrayTag() {
+            super(TagType.IntArray);
+        }
+
+        public IntArrayTag(String name, int[] data) {
+            super(TagType.IntArray);
+            this.data = data;
+            this.name = name;
+        }
+
+        public void set(int[] data) {
+            this.data = data;
+            markDirty();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            data = null;
+        }
+
+        @Override
+        protected String toString(String pad) {
+            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+        }
+
+        @Override
+        protected boolean dataEquals(Tag o) {
+            return Arrays.equals(data, ((IntArrayTag) o).data);
+        }
+
+        @Override
+        public Object data() {
+            return data;
+        }
+    }
+
+    public static class LongArrayTag extends Tag {
+        public long[] data;
+
+        public LongArrayTag() {
+            super(TagType.LongArray);
+        }
+
+        public LongArrayTag(String name, long[] data) {
+            super(TagType.LongArray);
+            this.data = data;
+            this.name = name;
+        }
+
+        public void set(long[] data) {
+            this.data = data;
+            markDirty();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            data = null;
+        }
+
+        @Override
+        protected String toString(String pad) {
+            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+        }
+
+        @Override
+        protected boolean dataEquals(Tag o) {
+            return Arrays.equals(data, ((LongArrayTag) o).data);
+        }
+
+        @Override
+        public Object data() {
+            return data;
+        }
+    }
+
+    public static class ShortArrayTag extends Tag {
+        public short[] data;
+
+        public ShortArrayTag() {
+            super(TagType.ShortArray);
+        }
+
+        public ShortArrayTag(String name, short[] data) {
+            super(TagType.ShortArray);
+            this.data = data;
+            this.name = name;
+        }
+
+        public void set(short[] data) {
+            this.data = data;
+            markDirty();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            data = null;
+        }
+
+        @Override
+        protected String toString(String pad) {
+            return super.toString(pad) + Arrays.toString(data) + "\r\n";
+        }
+
+        @Override
+        protected boolean dataEquals(Tag o) {
+            return Arrays.equals(data, ((ShortArrayTag) o).data);
+        }
+
+        @Override
+        public Object data() {
+            return data;
+        }
+    }
 
     public static class FloatArrayTag extends Tag {
         public float[] data;
@@ -979,6 +1665,11 @@ public class NBT {
             this.name = name;
         }
 
+        public void set(float[] data) {
+            this.data = data;
+            markDirty();
+        }
+
         @Override
         public void reset() {
             super.reset();
@@ -1055,7 +1746,7 @@ public class NBT {
 
         @Override
         public boolean matches(Tag t) {
-            return t.parent != null && t.parent.type == TagType.List && ((ListTag) t.parent).data.indexOf(t, false) == index;
+            return t.parent != null && t.parent.type == TagType.List && ((ListTag) t.parent).indexOf(t) == index;
         }
 
         @Override
@@ -1118,11 +1809,100 @@ public class NBT {
         }
     }
 
-    //////////////////////////////////////////
-    //////////////////////////////////////////
-    //////////////////////////////////////////
-    //////////////////////////////////////////
-
+    /**
+     * Parsed query, see {@link CollectionTag#query(String)}. Plans are immutable and can be shared between threads and
+     * reused for any number of trees.
+     * <p>
+     * The tree is walked once in document order. Every tag is matched against the last filter, and the filters before
+     * it are greedily matched along the path from the queried collection down to the tag. So each match is found
+     * exactly once and the matches can be streamed without a result set.
+     */
+    public static class Query {
+        public interface Visitor {
+            /**
+             * @return <code>false</code> to stop the query
+             */
+            boolean visit(Tag tag);
+        }
+
+        protected final String source;
+        protected final Filter[] filters;
+
+        public Query(String source) {
+            this.source = source;
+            String[] parts = source.split(" ");
+            filters = new Filter[parts.length];
+            for (int i = 0; i < parts.length; i++)
+                filters[i] = parseFilter(parts[i]);
+        }
+
+        /**
+         * @return all matches below <code>root</code>
+         */
+        public Set<Tag> run(CollectionTag root) {
+            final Set<Tag> results = new HashSet<>();
+            visit(root, new Visitor() {
+                @Override
+                public boolean visit(Tag tag) {
+                    results.add(tag);
+                    return true;
+                }
+            });
+            return results;
+        }
+
+        /**
+         * @return the first match below <code>root</code> in document order or <code>null</code>
+         */
+        public Tag first(CollectionTag root) {
+            final Tag[] first = new Tag[1];
+            visit(root, new Visitor() {
+                @Override
+                public boolean visit(Tag tag) {
+                    first[0] = tag;
+                    return false;
+                }
+            });
+            return first[0];
+        }
+
+        /**
+         * Passes the matches below <code>root</code> to the visitor in document order. The tree must not be modified
+         * while it is queried.
+         *
+         * @return <code>false</code> if the visitor stopped the query
+         */
+        public boolean visit(CollectionTag root, Visitor visitor) {
+            return visit(root, 0, visitor);
+        }
+
+        /**
+         * @param matched number of leading filters matched by the ancestors of the children
+         */
+        protected boolean visit(CollectionTag parent, int matched, Visitor visitor) {
+            int last = filters.length - 1;
+            for (Tag t : parent.getData()) {
+                if (matched == last && filters[last].matches(t) && !visitor.visit(t)) return false;
+
+                if (t instanceof CollectionTag) {
+                    int m = matched < last && filters[matched].matches(t) ? matched + 1 : matched;
+                    if (!visit((CollectionTag) t, m, visitor)) return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return source;
+        }
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
     public static class Builder {
         protected CompoundTag root;
 
@@ -1305,16 +2085,362 @@ public class NBT {
     //////////////////////////////////////////
     //////////////////////////////////////////
 
-    protected static final NBT nbt = new NBT();
+    /**
+     * Allocates the tags of documents read with it from one growable slab per tag type. {@link #release()} frees all of
+     * them at once, in constant time, and the next document read reuses them, so loading and discarding large saves
+     * produces no garbage once the slabs are big enough.
+     * <p>
+     * Tags of a released document must not be used anymore, and must never be {@link Tag#free() freed} individually.
+     * Released tags keep their data reachable until they are reused or the arena is {@link #clear() cleared}. Arenas
+     * are not thread-safe.
+     */
+    public static class TagArena {
+        static final ObjectIntMap<Class<?>> typeIndex = new ObjectIntMap<>();
+
+        /**
+         * Slab of {@link PackedListTag}, following the ones of the tag types
+         */
+        static final int PACKED = TagType.values().length;
+
+        static {
+            for (TagType t : TagType.values())
+                typeIndex.put(t.clazz, t.ordinal());
+            typeIndex.put(PackedListTag.class, PACKED);
+        }
+
+        protected final Tag[][] slabs = new Tag[PACKED + 1][];
+        protected final int[] used = new int[PACKED + 1];
+
+        @SuppressWarnings("unchecked")
+        public <T extends Tag> T obtain(Class<T> type) {
+            int index = typeIndex.get(type, -1);
+            if (index == -1) throw new IllegalArgumentException("Not a tag class: " + type);
+
+            Tag[] slab = slabs[index];
+            int n = used[index];
+            if (slab == null) {
+                slab = slabs[index] = new Tag[64];
+            } else if (n == slab.length) {
+                slab = slabs[index] = Arrays.copyOf(slab, n * 2);
+            }
+
+            Tag t = slab[n];
+            if (t == null) slab[n] = t = index == PACKED ? new PackedListTag() : newTag(TagType.values()[index]);
+            else t.reset();
+            used[index] = n + 1;
+            return (T) t;
+        }
+
+        /**
+         * Releases all tags obtained so far
+         */
+        public void release() {
+            Arrays.fill(used, 0);
+        }
+
+        /**
+         * Releases all tags and drops the slabs, so they can be garbage collected
+         */
+        public void clear() {
+            release();
+            Arrays.fill(slabs, null);
+        }
+
+        /**
+         * @return the number of tags currently in use
+         */
+        public int size() {
+            int size = 0;
+            for (int n : used)
+                size += n;
+            return size;
+        }
+    }
+
+    protected static Tag newTag(TagType type) {
+        switch (type) {
+            case End:
+                return new EndTag();
+            case Byte:
+                return new ByteTag();
+            case Short:
+                return new ShortTag();
+            case Int:
+                return new IntTag();
+            case Long:
+                return new LongTag();
+            case Float:
+                return new FloatTag();
+            case Double:
+                return new DoubleTag();
+            case ByteArray:
+                return new ByteArrayTag();
+            case String:
+                return new StringTag();
+            case List:
+                return new ListTag();
+            case Compound:
+                return new CompoundTag();
+            case IntArray:
+                return new IntArrayTag();
+            case LongArray:
+                return new LongArrayTag();
+            case ShortArray:
+                return new ShortArrayTag();
+            case FloatArray:
+                return new FloatArrayTag();
+            default:
+                throw new IllegalArgumentException("Unknown Tag Type: " + type);
+        }
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    protected static final ThreadLocal<NBT> nbt = new ThreadLocal<NBT>() {
+        @Override
+        protected NBT initialValue() {
+            return new NBT();
+        }
+    };
+
+    /**
+     * @return the codec of the calling thread. Instances are not thread-safe, but each thread gets its own one,
+     *         so reads and writes on different threads can run in parallel
+     */
+    public static NBT get() {
+        return nbt.get();
+    }
 
     protected DataInput input;
     protected DataOutput output;
 
-    protected NBT() {}
+    /**
+     * Tag name dictionary of the compact document being read or written
+     */
+    protected final Array<String> nameTable = new Array<>();
+    protected final ObjectIntMap<String> nameIndex = new ObjectIntMap<>();
+
+    /**
+     * Tag pools of this codec, as libGDX's global {@link Pools} are not thread-safe
+     */
+    protected final ObjectMap<Class<? extends Tag>, Pool<? extends Tag>> pools = new ObjectMap<>();
+
+    /**
+     * Arena of the document being read, if any, used instead of the pools
+     */
+    protected TagArena arena;
+
+    /**
+     * Subtrees to read of the document being read selectively, if any
+     */
+    protected Selection selection;
+
+    /**
+     * Number of selected subtrees not read yet, reading stops once it reaches zero
+     */
+    protected int selectionRemaining;
+
+    /**
+     * Lists with at least this many compound or list elements are split across the pool by
+     * {@link #readBufferParallel(ByteBuffer, ForkJoinPool)}
+     */
+    protected static final int PARALLEL_MIN_ELEMENTS = 64;
+
+    /**
+     * Pool and skip index of the document being read in parallel, if any
+     */
+    protected ForkJoinPool parallelPool;
+    protected LazyTagContainer parallelIndex;
+
+    /**
+     * Whether lists of numbers are read as {@link PackedListTag}
+     */
+    protected boolean packLists;
+
+    /**
+     * Longest tag name cached by {@link #readName()}
+     */
+    protected static final int NAME_CACHE_LENGTH = 64;
+    protected final byte[] nameBuffer = new byte[NAME_CACHE_LENGTH];
+    protected final String[] nameCache = new String[512];
+    protected final byte[][] nameCacheBytes = new byte[512][];
+
+    /**
+     * Chunk size in bytes for bulk array transfers
+     */
+    protected static final int ARRAY_CHUNK = 1 << 16;
+
+    protected ByteBuffer scratch;
+
+    /**
+     * Size of the buffer collecting written bytes before they are passed to the stream
+     */
+    protected static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    protected ByteBuffer outputBuffer;
+
+    public NBT() {}
+
+    /**
+     * Reads lists of Byte, Short, Int, Long, Float or Double elements of subsequent documents as
+     * {@link PackedListTag}, storing their values in one primitive array instead of one tag each
+     */
+    public NBT packLists(boolean packLists) {
+        this.packLists = packLists;
+        return this;
+    }
+
+    protected ByteBuffer scratch() {
+        if (scratch == null) scratch = ByteBuffer.allocate(ARRAY_CHUNK);
+        return scratch;
+    }
+
+    protected ByteBuffer outputBuffer() {
+        if (outputBuffer == null) outputBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        return outputBuffer;
+    }
+
+    /**
+     * Reads the big-endian elements of a short, int, long or float array in bulk, either directly from a
+     * {@link ByteBufferInput} or in chunks of {@link #ARRAY_CHUNK} bytes through <code>scratch</code>
+     */
+    protected static void readArray(DataInput input, ByteBuffer scratch, Object array, TagType type) throws IOException {
+        int length = java.lang.reflect.Array.getLength(array);
+        if (input instanceof ByteBufferInput) {
+            ByteBuffer buf = ((ByteBufferInput) input).buffer();
+            long bytes = (long) length * type.width;
+            if (buf.remaining() < bytes) throw new EOFException();
+            copyArray(buf.slice(), array, type, 0, length, true);
+            buf.position(buf.position() + (int) bytes);
+            return;
+        }
+
+        int per = ARRAY_CHUNK / type.width;
+        for (int offset = 0; offset < length; offset += per) {
+            int n = Math.min(per, length - offset);
+            input.readFully(scratch.array(), 0, n * type.width);
+            scratch.clear();
+            copyArray(scratch, array, type, offset, n, true);
+        }
+    }
+
+    /**
+     * Writes the elements of a short, int, long or float array in bulk, big-endian, either directly into a
+     * {@link ByteBufferOutput} or in chunks of {@link #ARRAY_CHUNK} bytes through <code>scratch</code>
+     */
+    protected static void writeArray(DataOutput output, ByteBuffer scratch, Object array, TagType type) throws IOException {
+        writeArray(output, scratch, array, type, java.lang.reflect.Array.getLength(array));
+    }
+
+    /**
+     * Writes the first <code>length</code> elements of the array
+     */
+    protected static void writeArray(DataOutput output, ByteBuffer scratch, Object array, TagType type, int length) throws IOException {
+        if (output instanceof ByteBufferOutput) {
+            ByteBufferOutput bbo = (ByteBufferOutput) output;
+            for (int offset = 0; offset < length;) {
+                ByteBuffer buf = bbo.ensure(Math.min(length - offset, ARRAY_CHUNK / type.width) * type.width);
+                int n = Math.min(length - offset, buf.remaining() / type.width);
+                copyArray(buf, array, type, offset, n, false);
+                buf.position(buf.position() + n * type.width);
+                offset += n;
+            }
+            return;
+        }
+
+        int per = ARRAY_CHUNK / type.width;
+        for (int offset = 0; offset < length; offset += per) {
+            int n = Math.min(per, length - offset);
+            scratch.clear();
+            copyArray(scratch, array, type, offset, n, false);
+            output.write(scratch.array(), 0, n * type.width);
+        }
+    }
+
+    private static void copyArray(ByteBuffer buf, Object array, TagType type, int offset, int length, boolean read) {
+        switch (type) {
+            case ShortArray:
+                if (read) buf.asShortBuffer().get((short[]) array, offset, length);
+                else buf.asShortBuffer().put((short[]) array, offset, length);
+                break;
+            case IntArray:
+                if (read) buf.asIntBuffer().get((int[]) array, offset, length);
+                else buf.asIntBuffer().put((int[]) array, offset, length);
+                break;
+            case LongArray:
+                if (read) buf.asLongBuffer().get((long[]) array, offset, length);
+                else buf.asLongBuffer().put((long[]) array, offset, length);
+                break;
+            case FloatArray:
+                if (read) buf.asFloatBuffer().get((float[]) array, offset, length);
+                else buf.asFloatBuffer().put((float[]) array, offset, length);
+                break;
+            default:
+                throw new IllegalArgumentException("No bulk transfer for Tag Type: " + type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T extends Tag> Pool<T> getPool(Class<T> type) {
+        Pool<T> pool = (Pool<T>) pools.get(type);
+        if (pool == null) {
+            pool = new ReflectionPool<>(type, 4, 100);
+            pools.put(type, pool);
+        }
+        return pool;
+    }
+
+    public <T extends Tag> T obtain(Class<T> type) {
+        if (arena != null) return arena.obtain(type);
+        return getPool(type).obtain();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void free(Tag tag) {
+        ((Pool<Tag>) getPool(tag.getClass())).free(tag);
+    }
 
+    /**
+     * Reads a tag name, reusing the string of an earlier occurrence of the same short name. Documents repeat few
+     * distinct names many times, so most reads allocate nothing
+     */
     protected String readName() throws IOException {
-        StringTag tag = readTag(TagType.String);
-        return tag.data;
+        int len = input.readUnsignedShort();
+        if (len > NAME_CACHE_LENGTH) {
+            byte[] data = new byte[len];
+            input.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+
+        byte[] buf = nameBuffer;
+        input.readFully(buf, 0, len);
+        int hash = len;
+        for (int i = 0; i < len; i++)
+            hash = 31 * hash + buf[i];
+        int slot = (hash ^ hash >>> 9) & (nameCache.length - 1);
+
+        byte[] cached = nameCacheBytes[slot];
+        if (cached != null && cached.length == len) {
+            int i = 0;
+            while (i < len && cached[i] == buf[i])
+                i++;
+            if (i == len) return nameCache[slot];
+        }
+
+        String name = new String(buf, 0, len, StandardCharsets.UTF_8);
+        nameCacheBytes[slot] = Arrays.copyOf(buf, len);
+        nameCache[slot] = name;
+        return name;
+    }
+
+    /**
+     * Reads UTF-8 bytes prefixed by their length as unsigned short
+     */
+    protected String readString() throws IOException {
+        byte[] data = new byte[input.readUnsignedShort()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     @SuppressWarnings("unchecked")
@@ -1327,100 +2453,95 @@ public class NBT {
         Tag tag = null;
         switch (type) {
             case End:
-                tag = Pools.obtain(EndTag.class);
+                tag = obtain(EndTag.class);
                 break;
             case Byte:
-                tag = Pools.obtain(ByteTag.class);
+                tag = obtain(ByteTag.class);
                 ((ByteTag) tag).data = input.readByte();
                 break;
             case Short:
-                tag = Pools.obtain(ShortTag.class);
+                tag = obtain(ShortTag.class);
                 ((ShortTag) tag).data = input.readShort();
                 break;
             case Int:
-                tag = Pools.obtain(IntTag.class);
+                tag = obtain(IntTag.class);
                 ((IntTag) tag).data = input.readInt();
                 break;
             case Long:
-                tag = Pools.obtain(LongTag.class);
+                tag = obtain(LongTag.class);
                 ((LongTag) tag).data = input.readLong();
                 break;
             case Float:
-                tag = Pools.obtain(FloatTag.class);
+                tag = obtain(FloatTag.class);
                 ((FloatTag) tag).data = input.readFloat();
                 break;
             case Double:
-                tag = Pools.obtain(DoubleTag.class);
+                tag = obtain(DoubleTag.class);
                 ((DoubleTag) tag).data = input.readDouble();
                 break;
             case ByteArray:
-                tag = Pools.obtain(ByteArrayTag.class);
-                IntTag length7 = readTag(TagType.Int);
-                byte[] data7 = new byte[length7.data];
+                tag = obtain(ByteArrayTag.class);
+                byte[] data7 = new byte[input.readInt()];
                 input.readFully(data7);
                 ((ByteArrayTag) tag).data = data7;
                 break;
             case String:
-                tag = Pools.obtain(StringTag.class);
-                ShortTag length8 = readTag(TagType.Short);
-                byte[] data8 = new byte[length8.data];
-                input.readFully(data8);
-                ((StringTag) tag).data = new String(data8, "UTF-8");
+                tag = obtain(StringTag.class);
+                ((StringTag) tag).data = readString();
                 break;
             case List:
-                tag = Pools.obtain(ListTag.class);
-                ByteTag type9 = readTag(TagType.Byte);
-                IntTag length9 = readTag(TagType.Int);
-                TagType tagtype9 = TagType.values()[type9.data];
+                TagType tagtype9 = tagType(input.readByte());
+                int length9 = input.readInt();
+                if (packLists && PackedListTag.isPackable(tagtype9)) {
+                    tag = readPackedList(tagtype9, length9, false);
+                    break;
+                }
+                tag = obtain(ListTag.class);
                 ((ListTag) tag).elementType = tagtype9;
-                for (int i = 0; i < length9.data; i++)
+                if (parallelPool != null && length9 >= PARALLEL_MIN_ELEMENTS
+                        && (tagtype9 == TagType.Compound || tagtype9 == TagType.List)) {
+                    readListParallel((ListTag) tag, length9);
+                    break;
+                }
+                for (int i = 0; i < length9; i++)
                     ((ListTag) tag).add(readTag(tagtype9));
                 break;
             case Compound:
-                tag = Pools.obtain(CompoundTag.class);
+                tag = obtain(CompoundTag.class);
 
+                // the type is checked first, so the end of the compound does not obtain an EndTag
                 while (true) {
-                    Tag t = readTag(true, null);
+                    byte type10 = input.readByte();
+                    if (type10 == 0) break;
 
-                    if (t instanceof EndTag) {
-                        break;
-                    } else((CompoundTag) tag).add(t);
+                    String name10 = readName();
+                    Tag t = readPayload(tagType(type10), null);
+                    t.name = name10;
+                    ((CompoundTag) tag).add(t);
                 }
                 break;
             case IntArray:
-                tag = Pools.obtain(IntArrayTag.class);
-                IntTag length11 = readTag(TagType.Int);
-                int[] data11 = new int[length11.data];
-                for (int i = 0; i < data11.length; i++) {
-                    data11[i] = input.readInt();
-                }
+                tag = obtain(IntArrayTag.class);
+                int[] data11 = new int[input.readInt()];
+                readArray(input, scratch(), data11, type);
                 ((IntArrayTag) tag).data = data11;
                 break;
             case LongArray:
-                tag = Pools.obtain(LongArrayTag.class);
-                IntTag length12 = readTag(TagType.Int);
-                long[] data12 = new long[length12.data];
-                for (int i = 0; i < data12.length; i++) {
-                    data12[i] = input.readLong();
-                }
+                tag = obtain(LongArrayTag.class);
+                long[] data12 = new long[input.readInt()];
+                readArray(input, scratch(), data12, type);
                 ((LongArrayTag) tag).data = data12;
                 break;
             case ShortArray:
-                tag = Pools.obtain(ShortArrayTag.class);
-                IntTag length13 = readTag(TagType.Int);
-                short[] data13 = new short[length13.data];
-                for (int i = 0; i < data13.length; i++) {
-                    data13[i] = input.readShort();
-                }
+                tag = obtain(ShortArrayTag.class);
+                short[] data13 = new short[input.readInt()];
+                readArray(input, scratch(), data13, type);
                 ((ShortArrayTag) tag).data = data13;
                 break;
             case FloatArray:
-                tag = Pools.obtain(FloatArrayTag.class);
-                IntTag length14 = readTag(TagType.Int);
-                float[] data14 = new float[length14.data];
-                for (int i = 0; i < data14.length; i++) {
-                    data14[i] = input.readFloat();
-                }
+                tag = obtain(FloatArrayTag.class);
+                float[] data14 = new float[input.readInt()];
+                readArray(input, scratch(), data14, type);
                 ((FloatArrayTag) tag).data = data14;
                 break;
             default:
@@ -1439,264 +2560,1678 @@ public class NBT {
         String name = null;
         if (named && type != 0) name = readName();
 
-        T tag = readPayload(reverseTags[type], expected);
+        T tag = readPayload(tagType(type), expected);
 
         tag.name = name;
         return tag;
     }
 
-    public static class LazyTagContainer {
-        public static class RawTag implements Poolable {
-            int position;
-            TagType type;
-            int size;
-            LazyTagContainer container;
-
-            @Override
-            public void reset() {
-                position = 0;
-                size = 0;
-                type = null;
-                container = null;
+    protected PackedListTag readPackedList(TagType elementType, int size, boolean compact) throws IOException {
+        if (size < 0) throw new IOException("Invalid length: " + size);
+        Object values = PackedListTag.newArray(elementType, size);
+        switch (elementType) {
+            case Byte:
+                input.readFully((byte[]) values);
+                break;
+            case Short:
+                if (compact) {
+                    for (int i = 0; i < size; i++)
+                        ((short[]) values)[i] = (short) unzigzag(readVarInt(input));
+                } else readArray(input, scratch(), values, TagType.ShortArray);
+                break;
+            case Int:
+                if (compact) {
+                    for (int i = 0; i < size; i++)
+                        ((int[]) values)[i] = unzigzag(readVarInt(input));
+                } else readArray(input, scratch(), values, TagType.IntArray);
+                break;
+            case Long:
+                if (compact) {
+                    for (int i = 0; i < size; i++)
+                        ((long[]) values)[i] = unzigzag(readVarLong(input));
+                } else readArray(input, scratch(), values, TagType.LongArray);
+                break;
+            case Float:
+                readArray(input, scratch(), values, TagType.FloatArray);
+                break;
+            default: {
+                ByteBuffer buf = scratch();
+                int per = ARRAY_CHUNK / 8;
+                for (int offset = 0; offset < size; offset += per) {
+                    int n = Math.min(per, size - offset);
+                    input.readFully(buf.array(), 0, n * 8);
+                    buf.clear();
+                    buf.asDoubleBuffer().get((double[]) values, offset, n);
+                }
+                break;
             }
         }
 
-        public static class RawCompoundTag extends RawTag {
-            ObjectMap<String, RawTag> children = new ObjectMap<>();
+        PackedListTag tag = obtain(PackedListTag.class);
+        tag.elementType = elementType;
+        tag.values = values;
+        tag.size = size;
+        return tag;
+    }
 
-            @Override
-            public void reset() {
-                children.clear();
-            }
-        }
+    protected static TagType tagType(byte b) throws IOException {
+        TagType t = b >= 0 ? reverseTags[b] : null;
+        if (t == null) throw new IOException("Unknown Tag Type: " + b);
+        return t;
+    }
 
-        public static class RawListTag extends RawTag {
-            /**
-             * offsets for basic types, tags for compound & list
-             */
-            Object[] children;
-            TagType childrenType;
+    /**
+     * Reads the root compound of a legacy or compact document
+     */
+    protected CompoundTag readDocument() throws IOException {
+        byte type = input.readByte();
+        if (type == (byte) (COMPACT_MAGIC >> 16)) return readCompact();
+        if (type != TagType.Compound.value) throw new IOException("Invalid root Tag Type: " + type);
 
-            @Override
-            public void reset() {
-                children = null;
-                childrenType = null;
-            }
+        String name = readName();
+        CompoundTag tag = selection != null ? (CompoundTag) readSelected(TagType.Compound, selection, false)
+                : readPayload(TagType.Compound, CompoundTag.class);
+        tag.name = name;
+        return tag;
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    /**
+     * Reads a compact document following its first header byte
+     */
+    protected CompoundTag readCompact() throws IOException {
+        readCompactHeader();
+        try {
+            TagType type = tagType(input.readByte());
+            if (type != TagType.Compound) throw new IOException("Invalid root Tag Type: " + type);
+
+            String name = readCompactName();
+            CompoundTag tag = selection != null ? (CompoundTag) readSelected(TagType.Compound, selection, true)
+                    : readCompactPayload(TagType.Compound);
+            tag.name = name;
+            return tag;
+        } finally {
+            nameTable.clear();
         }
+    }
 
-        ByteBuffer buf;
+    /**
+     * Reads the rest of the compact document header following its first byte
+     */
+    protected void readCompactHeader() throws IOException {
+        if (input.readUnsignedShort() != (COMPACT_MAGIC & 0xFFFF)) throw new IOException("Invalid compact document header");
+        int version = input.readUnsignedByte();
+        if (version < 2 || version > COMPACT_VERSION) throw new IOException("Unsupported compact format version: " + version);
+    }
 
-        public final RawCompoundTag root;
-        public final String rootName;
+    /**
+     * Reads a reference into the name dictionary, which defines the next entry if it equals the dictionary size
+     */
+    protected String readCompactName() throws IOException {
+        int index = readVarInt(input);
+        if (index == nameTable.size) {
+            String name = readCompactString();
+            nameTable.add(name);
+            return name;
+        }
+        if (index < 0 || index > nameTable.size) throw new IOException("Invalid name reference: " + index);
+        return nameTable.get(index);
+    }
 
-        public LazyTagContainer(byte[] data) throws IOException {
-            buf = ByteBuffer.wrap(data);
+    protected String readCompactString() throws IOException {
+        byte[] data = new byte[readLength()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
 
-            buf.position(0);
-            TagType type = reverseTags[buf.get()];
-            if (type == null || type != TagType.Compound) throw new IOException("Unknown Tag Type: " + type);
+    protected int readLength() throws IOException {
+        int length = readVarInt(input);
+        if (length < 0) throw new IOException("Invalid length: " + (length & 0xFFFFFFFFL));
+        return length;
+    }
 
-            short len = buf.getShort();
-            byte[] str = new byte[len];
-            buf.get(str);
-            rootName = new String(str, "UTF-8");
-            root = readCompound();
-        }
-
-        private RawCompoundTag readCompound() throws IOException {
-            RawCompoundTag compound = Pools.obtain(RawCompoundTag.class);
-            compound.position = buf.position();
-            compound.container = this;
-            while (buf.position() < buf.capacity()) {
-                short len = buf.getShort();
-                byte[] str = new byte[len];
-                buf.get(str);
-                String name = new String(str, "UTF-8");
-                TagType type = reverseTags[buf.get()];
-                if (type == null) throw new IOException("Unknown Tag Type: " + type);
+    @SuppressWarnings("unchecked")
+    protected <T extends Tag> T readCompactPayload(TagType type) throws IOException {
+        Tag tag = null;
+        switch (type) {
+            case End:
+                tag = obtain(EndTag.class);
+                break;
+            case Byte:
+                tag = obtain(ByteTag.class);
+                ((ByteTag) tag).data = input.readByte();
+                break;
+            case Short:
+                tag = obtain(ShortTag.class);
+                ((ShortTag) tag).data = (short) unzigzag(readVarInt(input));
+                break;
+            case Int:
+                tag = obtain(IntTag.class);
+                ((IntTag) tag).data = unzigzag(readVarInt(input));
+                break;
+            case Long:
+                tag = obtain(LongTag.class);
+                ((LongTag) tag).data = unzigzag(readVarLong(input));
+                break;
+            case Float:
+                tag = obtain(FloatTag.class);
+                ((FloatTag) tag).data = input.readFloat();
+                break;
+            case Double:
+                tag = obtain(DoubleTag.class);
+                ((DoubleTag) tag).data = input.readDouble();
+                break;
+            case ByteArray:
+                tag = obtain(ByteArrayTag.class);
+                byte[] bytes = new byte[readLength()];
+                input.readFully(bytes);
+                ((ByteArrayTag) tag).data = bytes;
+                break;
+            case String:
+                tag = obtain(StringTag.class);
+                ((StringTag) tag).data = readCompactString();
+                break;
+            case List:
+                byte b = input.readByte();
+                if (b == COLUMNAR) {
+                    tag = obtain(ListTag.class);
+                    readColumnar((ListTag) tag);
+                    break;
+                }
+                TagType elementType = tagType(b);
+                int size = readLength();
+                if (packLists && PackedListTag.isPackable(elementType)) {
+                    tag = readPackedList(elementType, size, true);
+                    break;
+                }
+                tag = obtain(ListTag.class);
+                ((ListTag) tag).elementType = elementType;
+                for (int i = 0; i < size; i++)
+                    ((ListTag) tag).add(readCompactPayload(elementType));
+                break;
+            case Compound:
+                tag = obtain(CompoundTag.class);
+                while (true) {
+                    TagType t = tagType(input.readByte());
+                    if (t == TagType.End) break;
+                    String name = readCompactName();
+                    Tag child = readCompactPayload(t);
+                    child.name = name;
+                    ((CompoundTag) tag).add(child);
+                }
+                break;
+            case IntArray:
+                tag = obtain(IntArrayTag.class);
+                int[] ints = new int[readLength()];
+                readVarArray(ints, type);
+                ((IntArrayTag) tag).data = ints;
+                break;
+            case LongArray:
+                tag = obtain(LongArrayTag.class);
+                long[] longs = new long[readLength()];
+                readVarArray(longs, type);
+                ((LongArrayTag) tag).data = longs;
+                break;
+            case ShortArray:
+                tag = obtain(ShortArrayTag.class);
+                short[] shorts = new short[readLength()];
+                readVarArray(shorts, type);
+                ((ShortArrayTag) tag).data = shorts;
+                break;
+            case FloatArray:
+                tag = obtain(FloatArrayTag.class);
+                float[] floats = new float[readLength()];
+                readArray(input, scratch(), floats, type);
+                ((FloatArrayTag) tag).data = floats;
+                break;
+            default:
+                throw new IOException("Unknown Tag Type: " + type);
+        }
+        return (T) tag;
+    }
 
-                switch (type) {
-                    case Byte:
-                    case Short:
-                    case Int:
-                    case Long:
-                    case Float:
-                    case Double: {
-                        RawTag tag = Pools.obtain(RawTag.class);
-                        tag.container = this;
-                        tag.position = buf.position();
-                        tag.type = type;
-                        buf.position(buf.position() + type.width);
-                        root.children.put(name, tag);
-                        break;
+    /**
+     * Reads a list of compounds stored column by column, see {@link #writeColumnar(ListTag)}. Each column is decoded
+     * into a primitive array first, then distributed to the elements
+     */
+    protected void readColumnar(ListTag list) throws IOException {
+        int size = readLength();
+        int fields = readLength();
+        TagType[] types = new TagType[fields];
+        String[] names = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            types[i] = tagType(input.readByte());
+            if (!isColumnType(types[i])) throw new IOException("Invalid column Tag Type: " + types[i]);
+            names[i] = readCompactName();
+        }
+
+        list.elementType = TagType.Compound;
+        CompoundTag[] elements = new CompoundTag[size];
+        for (int i = 0; i < size; i++)
+            elements[i] = obtain(CompoundTag.class);
+
+        for (int f = 0; f < fields; f++) {
+            String name = names[f];
+            switch (types[f]) {
+                case Byte: {
+                    byte[] column = new byte[size];
+                    input.readFully(column);
+                    for (int i = 0; i < size; i++) {
+                        ByteTag t = obtain(ByteTag.class);
+                        t.data = column[i];
+                        t.name = name;
+                        elements[i].add(t);
                     }
-                    case String: {
-                        RawTag tag = Pools.obtain(RawTag.class);
-                        tag.container = this;
-                        tag.position = buf.position();
-                        tag.type = type;
-                        tag.size = buf.getShort();
-                        root.children.put(name, tag);
-                        buf.position(buf.position() + tag.size);
-                        break;
+                    break;
+                }
+                case Short: {
+                    short[] column = new short[size];
+                    readVarArray(column, TagType.ShortArray);
+                    for (int i = 0; i < size; i++) {
+                        ShortTag t = obtain(ShortTag.class);
+                        t.data = column[i];
+                        t.name = name;
+                        elements[i].add(t);
                     }
-                    case ByteArray:
-                    case ShortArray:
-                    case IntArray:
-                    case LongArray:
-                    case FloatArray: {
-                        RawTag tag = Pools.obtain(RawTag.class);
-                        tag.container = this;
-                        tag.position = buf.position();
-                        tag.type = type;
-                        tag.size = buf.getInt();
-                        buf.position(buf.position() + tag.size * type.width);
-                        break;
+                    break;
+                }
+                case Int: {
+                    int[] column = new int[size];
+                    readVarArray(column, TagType.IntArray);
+                    for (int i = 0; i < size; i++) {
+                        IntTag t = obtain(IntTag.class);
+                        t.data = column[i];
+                        t.name = name;
+                        elements[i].add(t);
                     }
-                    case Compound:
-                        root.children.put(name, readCompound());
-                        break;
-                    case List: {
-                        root.children.put(name, readList());
-                        break;
+                    break;
+                }
+                case Long: {
+                    long[] column = new long[size];
+                    readVarArray(column, TagType.LongArray);
+                    for (int i = 0; i < size; i++) {
+                        LongTag t = obtain(LongTag.class);
+                        t.data = column[i];
+                        t.name = name;
+                        elements[i].add(t);
                     }
-                    case End:
-                    default:
-                        break;
+                    break;
                 }
+                case Float: {
+                    float[] column = new float[size];
+                    readArray(input, scratch(), column, TagType.FloatArray);
+                    for (int i = 0; i < size; i++) {
+                        FloatTag t = obtain(FloatTag.class);
+                        t.data = column[i];
+                        t.name = name;
+                        elements[i].add(t);
+                    }
+                    break;
+                }
+                case Double: {
+                    ByteBuffer buf = scratch();
+                    int per = ARRAY_CHUNK / 8;
+                    for (int offset = 0; offset < size; offset += per) {
+                        int n = Math.min(per, size - offset);
+                        input.readFully(buf.array(), 0, n * 8);
+                        buf.clear();
+                        for (int i = 0; i < n; i++) {
+                            DoubleTag t = obtain(DoubleTag.class);
+                            t.data = buf.getDouble();
+                            t.name = name;
+                            elements[offset + i].add(t);
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    for (int i = 0; i < size; i++) {
+                        StringTag t = obtain(StringTag.class);
+                        t.data = readCompactName();
+                        t.name = name;
+                        elements[i].add(t);
+                    }
+                    break;
+                }
+            }
+        }
 
-                // end tag
-                if (buf.get(buf.position()) == 0) break;
+        for (int i = 0; i < size; i++)
+            list.add(elements[i]);
+    }
+
+    /**
+     * Reads the ZigZag varints of a short, int or long array, prefixed by their total size in bytes, in chunks of
+     * {@link #ARRAY_CHUNK} bytes
+     */
+    protected void readVarArray(Object array, TagType type) throws IOException {
+        int length = java.lang.reflect.Array.getLength(array);
+        int bytes = readLength();
+        byte[] buf = scratch().array();
+        int pos = 0, end = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (end - pos < 10 && bytes > 0) {
+                System.arraycopy(buf, pos, buf, 0, end - pos);
+                end -= pos;
+                pos = 0;
+                int n = Math.min(buf.length - end, bytes);
+                input.readFully(buf, end, n);
+                end += n;
+                bytes -= n;
             }
 
-            return compound;
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos == end || shift > 63) throw new IOException("Malformed varint array");
+                b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            v = unzigzag(v);
+
+            switch (type) {
+                case ShortArray:
+                    ((short[]) array)[i] = (short) v;
+                    break;
+                case IntArray:
+                    ((int[]) array)[i] = (int) v;
+                    break;
+                default:
+                    ((long[]) array)[i] = v;
+                    break;
+            }
+        }
+
+        if (pos != end || bytes != 0) throw new IOException("Malformed varint array");
+    }
+
+    protected static int readVarInt(DataInput input) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.readByte();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    protected static long readVarLong(DataInput input) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = input.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    protected static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    protected static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    protected static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    protected static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    /**
+     * Parses an uncompressed document like {@link #readBuffer(ByteBuffer)}, but materializes the elements of large
+     * lists of compounds or lists concurrently on <code>pool</code>. The boundaries of the elements are found by a
+     * skip scan over the buffer first, then batches of similar byte size are parsed by the codecs of the pool's
+     * threads, and the elements are added to the list in document order. Compact documents are read sequentially, as
+     * their name dictionary is built while reading.
+     */
+    public CompoundTag readBufferParallel(ByteBuffer buffer, ForkJoinPool pool) throws IOException {
+        if (buffer.remaining() == 0 || buffer.get(buffer.position()) != TagType.Compound.value) return readBuffer(buffer);
+
+        try {
+            parallelIndex = new LazyTagContainer(buffer);
+        } catch (NBTException e) {
+            throw new IOException(e);
+        }
+        parallelPool = pool;
+        try {
+            return readBuffer(buffer);
+        } finally {
+            parallelPool = null;
+            parallelIndex = null;
+        }
+    }
+
+    protected void readListParallel(ListTag list, int size) throws IOException {
+        final ByteBuffer buf = ((ByteBufferInput) input).buffer();
+        final TagType type = list.elementType;
+
+        // positions of the input and the index are both relative to the start of the document
+        final int[] offsets = new int[size + 1];
+        int pos = buf.position();
+        try {
+            for (int i = 0; i < size; i++) {
+                offsets[i] = pos;
+                pos = parallelIndex.skip(type, pos);
+            }
+        } catch (NBTException e) {
+            throw new IOException(e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new EOFException();
+        }
+        if (pos > buf.limit()) throw new EOFException();
+        offsets[size] = pos;
+
+        final Tag[] elements = new Tag[size];
+        final boolean packLists = this.packLists;
+        long batchBytes = Math.max(1, (offsets[size] - offsets[0]) / (parallelPool.getParallelism() * 4L));
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < size;) {
+            int to = from + 1;
+            while (to < size && offsets[to] - offsets[from] < batchBytes)
+                to++;
+
+            final int start = from, end = to;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    nbt.get().readElements(buf, offsets, start, end, elements, type, packLists);
+                    return null;
+                }
+            });
+            from = to;
+        }
+
+        try {
+            for (Future<Void> f : parallelPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        for (Tag t : elements)
+            list.add(t);
+        buf.position(offsets[size]);
+    }
+
+    /**
+     * Reads the elements <code>from</code> to <code>to</code> of a list into <code>out</code>, saving the state of
+     * this codec, as it may be in the middle of a read on the calling thread
+     */
+    protected void readElements(ByteBuffer buf, int[] offsets, int from, int to, Tag[] out, TagType type, boolean packLists)
+            throws IOException {
+        DataInput input = this.input;
+        ForkJoinPool parallelPool = this.parallelPool;
+        boolean pack = this.packLists;
+        TagArena arena = this.arena;
+
+        ByteBuffer b = buf.duplicate();
+        b.limit(offsets[to]).position(offsets[from]);
+        this.input = new ByteBufferInput(b);
+        this.parallelPool = null;
+        this.packLists = packLists;
+        this.arena = null;
+        try {
+            for (int i = from; i < to; i++)
+                out[i] = readTag(type);
+        } finally {
+            this.input = input;
+            this.parallelPool = parallelPool;
+            this.packLists = pack;
+            this.arena = arena;
+        }
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    /**
+     * Tree of the paths to read in a selective read. A path ending at a node selects the whole subtree below it
+     */
+    protected static class Selection {
+        protected ObjectMap<String, Selection> names;
+        protected IntMap<Selection> indices;
+        protected boolean whole;
+
+        public static Selection of(NBTPath... paths) {
+            Selection root = new Selection();
+            for (NBTPath path : paths) {
+                Selection s = root;
+                for (int i = 0; i < path.names.length && !s.whole; i++)
+                    s = s.child(path.names[i], path.indices[i]);
+                s.whole = true;
+                s.names = null;
+                s.indices = null;
+            }
+            return root;
+        }
+
+        protected Selection child(String name, int index) {
+            Selection s;
+            if (name != null) {
+                if (names == null) names = new ObjectMap<>();
+                s = names.get(name);
+                if (s == null) names.put(name, s = new Selection());
+            } else {
+                if (indices == null) indices = new IntMap<>();
+                s = indices.get(index);
+                if (s == null) indices.put(index, s = new Selection());
+            }
+            return s;
+        }
+
+        /**
+         * @return the number of selected subtrees
+         */
+        public int count() {
+            if (whole) return 1;
+            int count = 0;
+            if (names != null) for (Selection s : names.values())
+                count += s.count();
+            if (indices != null) for (Selection s : indices.values())
+                count += s.count();
+            return count;
+        }
+    }
+
+    /**
+     * Reads only the tags at <code>paths</code> and their subtrees, plus the compounds and lists leading to them.
+     * Everything else is skipped while streaming through the decompressor, without allocating tags, and reading stops
+     * as soon as all paths were found. Lists keep their indices, by reading skipped compound or list elements as empty
+     * tags and skipped elements of other types as a whole. The hash footer is only verified if the document had to be
+     * read to its end.
+     */
+    public CompoundTag readSelected(InputStream is, CompressionType compression, NBTPath... paths) throws IOException {
+        selection = Selection.of(paths);
+        selectionRemaining = selection.count();
+        try {
+            return readFile(is, compression);
+        } finally {
+            selection = null;
+        }
+    }
+
+    protected Tag readSelected(TagType type, Selection sel, boolean compact) throws IOException {
+        if (sel.whole) {
+            selectionRemaining--;
+            return compact ? readCompactPayload(type) : readTag(type);
+        }
+
+        switch (type) {
+            case Compound: {
+                CompoundTag tag = obtain(CompoundTag.class);
+                while (selectionRemaining > 0) {
+                    TagType t = tagType(input.readByte());
+                    if (t == TagType.End) break;
+                    String name = compact ? readCompactName() : readName();
+                    Selection child = sel.names != null ? sel.names.get(name) : null;
+                    if (child == null) {
+                        skipPayload(t, compact);
+                        continue;
+                    }
+
+                    Tag c = readSelected(t, child, compact);
+                    if (c != null) {
+                        c.name = name;
+                        tag.add(c);
+                    }
+                }
+                return tag;
+            }
+            case List: {
+                ListTag tag = obtain(ListTag.class);
+                TagType element;
+                int size;
+                if (compact) {
+                    byte b = input.readByte();
+                    if (b == COLUMNAR) {
+                        // columns can not be split into elements, but hold only primitives
+                        if (sel.indices != null) {
+                            readColumnar(tag);
+                            selectionRemaining -= sel.count();
+                        } else skipColumnar();
+                        return tag;
+                    }
+                    element = tagType(b);
+                    size = readLength();
+                } else {
+                    element = tagType(input.readByte());
+                    size = input.readInt();
+                }
+
+                tag.elementType = element;
+                if (sel.indices == null) {
+                    skipList(element, size, compact);
+                    return tag;
+                }
+
+                boolean collection = element == TagType.Compound || element == TagType.List;
+                for (int i = 0; i < size && selectionRemaining > 0; i++) {
+                    Selection child = sel.indices.get(i);
+                    if (collection) {
+                        if (child != null) tag.add(readSelected(element, child, compact));
+                        else {
+                            skipPayload(element, compact);
+                            Tag empty = obtain(element.clazz);
+                            if (empty instanceof ListTag) ((ListTag) empty).elementType = TagType.End;
+                            tag.add(empty);
+                        }
+                    } else if (child != null && child.whole) {
+                        tag.add(readSelected(element, child, compact));
+                    } else {
+                        tag.add(compact ? readCompactPayload(element) : readTag(element));
+                    }
+                }
+                return tag;
+            }
+            default:
+                skipPayload(type, compact);
+                return null;
+        }
+    }
+
+    protected void skipPayload(TagType type, boolean compact) throws IOException {
+        if (compact) {
+            skipCompactPayload(type);
+            return;
+        }
+
+        switch (type) {
+            case End:
+                break;
+            case Byte:
+            case Short:
+            case Int:
+            case Long:
+            case Float:
+            case Double:
+                skipBytes(type.width);
+                break;
+            case String:
+                skipBytes(input.readUnsignedShort());
+                break;
+            case ByteArray:
+            case IntArray:
+            case LongArray:
+            case ShortArray:
+            case FloatArray:
+                skipBytes((long) input.readInt() * type.width);
+                break;
+            case List: {
+                TagType element = tagType(input.readByte());
+                skipList(element, input.readInt(), false);
+                break;
+            }
+            case Compound:
+                while (true) {
+                    TagType t = tagType(input.readByte());
+                    if (t == TagType.End) break;
+                    skipBytes(input.readUnsignedShort());
+                    skipPayload(t, false);
+                }
+                break;
+            default:
+                throw new IOException("Unknown Tag Type: " + type);
         }
+    }
 
-        private RawListTag readList() throws IOException {
-            RawListTag tag = Pools.obtain(RawListTag.class);
-            tag.container = this;
-            tag.childrenType = reverseTags[buf.get()];
+    protected void skipList(TagType element, int size, boolean compact) throws IOException {
+        if (size < 0) throw new IOException("Invalid length: " + size);
+        boolean fixed = element == TagType.Byte || element == TagType.Float || element == TagType.Double
+                || (!compact && (element == TagType.Short || element == TagType.Int || element == TagType.Long));
+        if (fixed) skipBytes((long) size * element.width);
+        else for (int i = 0; i < size; i++)
+            skipPayload(element, compact);
+    }
 
-            int pos = buf.position();
-            switch (tag.childrenType) {
+    /**
+     * Skips a tag of a compact document. Names are still read, as they may define dictionary entries
+     */
+    protected void skipCompactPayload(TagType type) throws IOException {
+        switch (type) {
+            case End:
+                break;
+            case Byte:
+            case Float:
+            case Double:
+                skipBytes(type.width);
+                break;
+            case Short:
+            case Int:
+            case Long:
+                readVarLong(input);
+                break;
+            case ByteArray:
+            case String:
+                skipBytes(readLength());
+                break;
+            case IntArray:
+            case LongArray:
+            case ShortArray:
+                readLength();
+                skipBytes(readLength());
+                break;
+            case FloatArray:
+                skipBytes((long) readLength() * 4);
+                break;
+            case List: {
+                byte b = input.readByte();
+                if (b == COLUMNAR) skipColumnar();
+                else skipList(tagType(b), readLength(), true);
+                break;
+            }
+            case Compound:
+                while (true) {
+                    TagType t = tagType(input.readByte());
+                    if (t == TagType.End) break;
+                    readCompactName();
+                    skipCompactPayload(t);
+                }
+                break;
+            default:
+                throw new IOException("Unknown Tag Type: " + type);
+        }
+    }
+
+    /**
+     * Skips a columnar list following its marker, see {@link #readColumnar(ListTag)}
+     */
+    protected void skipColumnar() throws IOException {
+        int size = readLength();
+        int fields = readLength();
+        TagType[] types = new TagType[fields];
+        for (int i = 0; i < fields; i++) {
+            types[i] = tagType(input.readByte());
+            if (!isColumnType(types[i])) throw new IOException("Invalid column Tag Type: " + types[i]);
+            readCompactName();
+        }
+
+        for (TagType type : types) {
+            switch (type) {
                 case Byte:
+                case Float:
+                case Double:
+                    skipBytes((long) size * type.width);
+                    break;
                 case Short:
                 case Int:
-                case Float:
                 case Long:
-                case Double:
-                    buf.position(pos + tag.children.length * tag.childrenType.width);
+                    skipBytes(readLength());
+                    break;
+                default:
+                    for (int i = 0; i < size; i++)
+                        readCompactName();
                     break;
+            }
+        }
+    }
+
+    /**
+     * Reads and discards bytes, which unlike skipping keeps them passing through the hash of the document
+     */
+    protected void skipBytes(long n) throws IOException {
+        byte[] buf = scratch().array();
+        while (n > 0) {
+            int len = (int) Math.min(n, buf.length);
+            input.readFully(buf, 0, len);
+            n -= len;
+        }
+    }
+
+    /**
+     * Read-only view of a binary, uncompressed NBT document. Compounds index their children incrementally, only as far
+     * as needed to find the requested one, and values are only decoded when requested, array tags are returned as views
+     * into the buffer. All reads use absolute
+     * positions, so a container can be shared between threads.
+     */
+    public static class LazyTagContainer {
+        public static class RawTag {
+            public final TagType type;
+            final int position;
+            final LazyTagContainer container;
+
+            RawTag(LazyTagContainer container, TagType type, int position) {
+                this.container = container;
+                this.type = type;
+                this.position = position;
+            }
+
+            protected void check(TagType expected) throws NBTException {
+                if (type != expected)
+                    throw new NBTException("Invalid tag type! Expected \"" + expected + "\", got \"" + type + "\"");
+            }
+
+            public byte byteValue() throws NBTException {
+                check(TagType.Byte);
+                return container.buf.get(position);
+            }
+
+            public short shortValue() throws NBTException {
+                check(TagType.Short);
+                return container.buf.getShort(position);
+            }
+
+            public int intValue() throws NBTException {
+                check(TagType.Int);
+                return container.buf.getInt(position);
+            }
+
+            public long longValue() throws NBTException {
+                check(TagType.Long);
+                return container.buf.getLong(position);
+            }
+
+            public float floatValue() throws NBTException {
+                check(TagType.Float);
+                return container.buf.getFloat(position);
+            }
+
+            public double doubleValue() throws NBTException {
+                check(TagType.Double);
+                return container.buf.getDouble(position);
+            }
+
+            public String stringValue() throws NBTException {
+                check(TagType.String);
+                return container.readString(position);
+            }
+
+            /**
+             * @return the number of elements of an array tag
+             */
+            public int length() throws NBTException {
+                switch (type) {
+                    case ByteArray:
+                    case IntArray:
+                    case LongArray:
+                    case ShortArray:
+                    case FloatArray:
+                        return container.buf.getInt(position);
+                    default:
+                        throw new NBTException("Tag of type \"" + type + "\" is no array");
+                }
+            }
+
+            protected ByteBuffer arrayView() throws NBTException {
+                int len = length();
+                ByteBuffer b = container.buf.duplicate();
+                b.limit(position + 4 + len * type.width);
+                b.position(position + 4);
+                return b.slice();
+            }
+
+            public ByteBuffer byteArrayValue() throws NBTException {
+                check(TagType.ByteArray);
+                return arrayView();
+            }
+
+            public ShortBuffer shortArrayValue() throws NBTException {
+                check(TagType.ShortArray);
+                return arrayView().asShortBuffer();
+            }
+
+            public IntBuffer intArrayValue() throws NBTException {
+                check(TagType.IntArray);
+                return arrayView().asIntBuffer();
+            }
+
+            public LongBuffer longArrayValue() throws NBTException {
+                check(TagType.LongArray);
+                return arrayView().asLongBuffer();
+            }
+
+            public FloatBuffer floatArrayValue() throws NBTException {
+                check(TagType.FloatArray);
+                return arrayView().asFloatBuffer();
+            }
+
+            public RawCompoundTag compoundValue() throws NBTException {
+                check(TagType.Compound);
+                return (RawCompoundTag) this;
+            }
+
+            public RawListTag listValue() throws NBTException {
+                check(TagType.List);
+                return (RawListTag) this;
+            }
+        }
+
+        public static class RawCompoundTag extends RawTag {
+            final ObjectMap<String, RawTag> children = new ObjectMap<>();
+            /**
+             * position of the next child not yet indexed, or -1 once all children are known
+             */
+            int next;
+
+            RawCompoundTag(LazyTagContainer container, int position) {
+                super(container, TagType.Compound, position);
+                next = position;
+            }
+
+            /**
+             * Indexes children until the one named <code>name</code> is found, or all of them if it is null
+             */
+            protected synchronized RawTag index(String name) throws NBTException {
+                RawTag tag = name != null ? children.get(name) : null;
+                while (tag == null && next != -1) {
+                    TagType type = container.type(next);
+                    if (type == TagType.End) {
+                        next = -1;
+                        break;
+                    }
+                    int pos = next + 1;
+                    String n = container.readString(pos);
+                    pos += 2 + (container.buf.getShort(pos) & 0xFFFF);
+                    RawTag t = container.create(type, pos);
+                    children.put(n, t);
+                    next = container.skip(type, pos);
+                    if (n.equals(name)) tag = t;
+                }
+                return tag;
+            }
+
+            public boolean has(String name) throws NBTException {
+                return index(name) != null;
+            }
+
+            public synchronized int size() throws NBTException {
+                index(null);
+                return children.size;
+            }
+
+            public synchronized ObjectMap.Keys<String> names() throws NBTException {
+                index(null);
+                return new ObjectMap.Keys<>(children);
+            }
+
+            public RawTag get(String name) throws NBTException {
+                return index(name);
+            }
+
+            public RawTag getWithException(String name) throws NBTException {
+                RawTag t = index(name);
+                if (t == null) throw new NBTException("No tag found with name \"" + name + "\"");
+                return t;
+            }
+
+            public RawTag get(String name, TagType type) throws NBTException {
+                RawTag t = index(name);
+                if (t == null || t.type != type) return null;
+                return t;
+            }
+
+            public byte getByte(String name) throws NBTException {
+                return getWithException(name).byteValue();
+            }
+
+            public byte getByte(String name, byte defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Byte);
+                return t == null ? defaultValue : t.byteValue();
+            }
+
+            public short getShort(String name) throws NBTException {
+                return getWithException(name).shortValue();
+            }
+
+            public short getShort(String name, short defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Short);
+                return t == null ? defaultValue : t.shortValue();
+            }
+
+            public int getInt(String name) throws NBTException {
+                return getWithException(name).intValue();
+            }
+
+            public int getInt(String name, int defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Int);
+                return t == null ? defaultValue : t.intValue();
+            }
+
+            public long getLong(String name) throws NBTException {
+                return getWithException(name).longValue();
+            }
+
+            public long getLong(String name, long defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Long);
+                return t == null ? defaultValue : t.longValue();
+            }
+
+            public float getFloat(String name) throws NBTException {
+                return getWithException(name).floatValue();
+            }
+
+            public float getFloat(String name, float defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Float);
+                return t == null ? defaultValue : t.floatValue();
+            }
+
+            public double getDouble(String name) throws NBTException {
+                return getWithException(name).doubleValue();
+            }
+
+            public double getDouble(String name, double defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.Double);
+                return t == null ? defaultValue : t.doubleValue();
+            }
+
+            public String getString(String name) throws NBTException {
+                return getWithException(name).stringValue();
+            }
+
+            public String getString(String name, String defaultValue) throws NBTException {
+                RawTag t = get(name, TagType.String);
+                return t == null ? defaultValue : t.stringValue();
+            }
+
+            public ByteBuffer getByteArray(String name) throws NBTException {
+                return getWithException(name).byteArrayValue();
+            }
+
+            public ShortBuffer getShortArray(String name) throws NBTException {
+                return getWithException(name).shortArrayValue();
+            }
+
+            public IntBuffer getIntArray(String name) throws NBTException {
+                return getWithException(name).intArrayValue();
+            }
+
+            public LongBuffer getLongArray(String name) throws NBTException {
+                return getWithException(name).longArrayValue();
+            }
+
+            public FloatBuffer getFloatArray(String name) throws NBTException {
+                return getWithException(name).floatArrayValue();
+            }
+
+            public RawCompoundTag getCompound(String name) throws NBTException {
+                return getWithException(name).compoundValue();
+            }
+
+            public RawListTag getList(String name) throws NBTException {
+                return getWithException(name).listValue();
+            }
+        }
+
+        public static class RawListTag extends RawTag {
+            public final TagType elementType;
+            public final int size;
+
+            /**
+             * payload offsets of variable width elements, built on first access
+             */
+            int[] offsets;
+            RawTag[] children;
+
+            RawListTag(LazyTagContainer container, int position) throws NBTException {
+                super(container, TagType.List, position);
+                elementType = container.type(position);
+                size = container.buf.getInt(position + 1);
+                if (size < 0) throw new NBTException("Invalid length: " + size);
+            }
+
+            protected int offset(int index) throws NBTException {
+                if (index < 0 || index >= size) throw new NBTException("Index out of bounds: " + index + ", size: " + size);
+                int start = position + 5;
+                switch (elementType) {
+                    case Byte:
+                    case Short:
+                    case Int:
+                    case Long:
+                    case Float:
+                    case Double:
+                        return start + index * elementType.width;
+                    default:
+                        synchronized (this) {
+                            if (offsets == null) {
+                                int[] o = new int[size];
+                                int pos = start;
+                                for (int i = 0; i < size; i++) {
+                                    o[i] = pos;
+                                    pos = container.skip(elementType, pos);
+                                }
+                                offsets = o;
+                            }
+                        }
+                        return offsets[index];
+                }
+            }
+
+            public RawTag get(int index) throws NBTException {
+                int pos = offset(index);
+                synchronized (this) {
+                    if (children == null) children = new RawTag[size];
+                    if (children[index] == null) children[index] = container.create(elementType, pos);
+                    return children[index];
+                }
+            }
+
+            protected void checkElement(TagType type) throws NBTException {
+                if (elementType != type)
+                    throw new NBTException("Invalid element tag type! Expected \"" + type + "\", got \"" + elementType + "\"");
+            }
+
+            public byte getByte(int index) throws NBTException {
+                checkElement(TagType.Byte);
+                return container.buf.get(offset(index));
+            }
+
+            public short getShort(int index) throws NBTException {
+                checkElement(TagType.Short);
+                return container.buf.getShort(offset(index));
+            }
+
+            public int getInt(int index) throws NBTException {
+                checkElement(TagType.Int);
+                return container.buf.getInt(offset(index));
+            }
+
+            public long getLong(int index) throws NBTException {
+                checkElement(TagType.Long);
+                return container.buf.getLong(offset(index));
+            }
+
+            public float getFloat(int index) throws NBTException {
+                checkElement(TagType.Float);
+                return container.buf.getFloat(offset(index));
+            }
+
+            public double getDouble(int index) throws NBTException {
+                checkElement(TagType.Double);
+                return container.buf.getDouble(offset(index));
+            }
+
+            public String getString(int index) throws NBTException {
+                checkElement(TagType.String);
+                return container.readString(offset(index));
+            }
+
+            public RawCompoundTag getCompound(int index) throws NBTException {
+                checkElement(TagType.Compound);
+                return (RawCompoundTag) get(index);
+            }
+
+            public RawListTag getList(int index) throws NBTException {
+                checkElement(TagType.List);
+                return (RawListTag) get(index);
+            }
+
+            public ByteBuffer getByteArray(int index) throws NBTException {
+                return get(index).byteArrayValue();
+            }
+
+            public ShortBuffer getShortArray(int index) throws NBTException {
+                return get(index).shortArrayValue();
+            }
+
+            public IntBuffer getIntArray(int index) throws NBTException {
+                return get(index).intArrayValue();
+            }
+
+            public LongBuffer getLongArray(int index) throws NBTException {
+                return get(index).longArrayValue();
+            }
+
+            public FloatBuffer getFloatArray(int index) throws NBTException {
+                return get(index).floatArrayValue();
+            }
+        }
+
+        final ByteBuffer buf;
+
+        public final RawCompoundTag root;
+        public final String rootName;
+
+        public LazyTagContainer(byte[] data) throws NBTException {
+            this(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * @param buffer the document, starting at the buffer's current position. The buffer's position is not modified
+         */
+        public LazyTagContainer(ByteBuffer buffer) throws NBTException {
+            buf = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+
+            TagType type = type(0);
+            if (type != TagType.Compound) throw new NBTException("Invalid root tag type: " + type);
+
+            rootName = readString(1);
+            root = new RawCompoundTag(this, 3 + (buf.getShort(1) & 0xFFFF));
+        }
+
+        TagType type(int pos) throws NBTException {
+            byte b = buf.get(pos);
+            TagType type = b >= 0 ? reverseTags[b] : null;
+            if (type == null) throw new NBTException("Unknown Tag Type: " + b);
+            return type;
+        }
+
+        String readString(int pos) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            byte[] str = new byte[len];
+            for (int i = 0; i < len; i++)
+                str[i] = buf.get(pos + 2 + i);
+            return new String(str, StandardCharsets.UTF_8);
+        }
+
+        RawTag create(TagType type, int pos) throws NBTException {
+            switch (type) {
+                case Compound:
+                    return new RawCompoundTag(this, pos);
+                case List:
+                    return new RawListTag(this, pos);
+                default:
+                    return new RawTag(this, type, pos);
+            }
+        }
+
+        /**
+         * @return the position right after the payload of a tag of the given type starting at <code>pos</code>
+         */
+        int skip(TagType type, int pos) throws NBTException {
+            switch (type) {
+                case End:
+                    return pos;
+                case Byte:
+                case Short:
+                case Int:
+                case Long:
+                case Float:
+                case Double:
+                    return pos + type.width;
+                case String:
+                    return pos + 2 + (buf.getShort(pos) & 0xFFFF);
                 case ByteArray:
                 case ShortArray:
                 case IntArray:
-                case FloatArray:
                 case LongArray:
-                    tag.children = new Object[buf.getInt()];
-                    for (int i = 0; i < tag.children.length; i++) {
-                        int elems = buf.getInt();
-                        pos += elems * tag.childrenType.width;
-                        buf.position(pos);
-                        tag.size = elems;
-                        tag.children[i] = pos;
-                    }
-                    break;
-                case String:
-                    tag.children = new Object[buf.getInt()];
-                    for (int i = 0; i < tag.children.length; i++) {
-                        int elems = buf.getShort();
-                        pos += elems;
-                        buf.position(pos);
-                        tag.children[i] = pos;
-                    }
-                    break;
-                case Compound: {
-                    tag.children = new Object[buf.getInt()];
-                    for (int i = 0; i < tag.children.length; i++) {
-                        tag.children[i] = readCompound();
-                    }
-                    break;
-                }
+                case FloatArray:
+                    return advance(pos + 4, length(pos), type.width);
                 case List: {
-                    tag.children = new Object[buf.getInt()];
-                    for (int i = 0; i < tag.children.length; i++) {
-                        tag.children[i] = readList();
+                    TagType element = type(pos);
+                    int size = length(pos + 1);
+                    pos += 5;
+                    if (element.ordinal() >= TagType.Byte.ordinal() && element.ordinal() <= TagType.Double.ordinal())
+                        return advance(pos, size, element.width);
+                    for (int i = 0; i < size; i++)
+                        pos = skip(element, pos);
+                    return pos;
+                }
+                case Compound:
+                    while (true) {
+                        TagType t = type(pos);
+                        pos++;
+                        if (t == TagType.End) return pos;
+                        pos += 2 + (buf.getShort(pos) & 0xFFFF);
+                        pos = skip(t, pos);
                     }
-                    break;
+                default:
+                    throw new NBTException("Unknown Tag Type: " + type);
+            }
+        }
+
+        int length(int pos) throws NBTException {
+            int length = buf.getInt(pos);
+            if (length < 0) throw new NBTException("Invalid length: " + length);
+            return length;
+        }
+
+        /**
+         * @return the position after <code>count</code> elements of <code>width</code> bytes, which have to lie within
+         *         the document
+         */
+        int advance(int pos, int count, int width) throws NBTException {
+            long end = pos + (long) count * width;
+            if (end > buf.limit()) throw new NBTException("Tag exceeds the document: " + end + " > " + buf.limit());
+            return (int) end;
+        }
+    }
+
+    protected static InputStream decompress(InputStream is, CompressionType compression) throws IOException {
+        if (compression == CompressionType.Fast) {
+            if (Gdx.app == null || Gdx.app.getType() == ApplicationType.Desktop)
+                return new LZ4FrameInputStream(is);
+            else
+                return new LZ4FrameInputStream(is, IOUtils.getLZ4().safeDecompressor(),
+                        IOUtils.getXXHash().hash32());
+        } else if (compression == CompressionType.FastParallel) {
+            return new ParallelLZ4FrameInputStream(is);
+        } else if (compression == CompressionType.Small) {
+            return new GZIPInputStream(is);
+        }
+        return is;
+    }
+
+    /**
+     * Determines the compression of a document by peeking at its first bytes: the LZ4 frame magic, the GZIP header,
+     * the type byte of the root compound or the compact format header. The peeked bytes are pushed back, so
+     * <code>is</code> can be decoded afterwards.
+     *
+     * @return the detected compression or <code>null</code> if the format is unknown
+     */
+    public static CompressionType detectCompression(PushbackInputStream is) throws IOException {
+        byte[] head = new byte[4];
+        int len = 0;
+        for (int read; len < head.length && (read = is.read(head, len, head.length - len)) != -1;)
+            len += read;
+        is.unread(head, 0, len);
+
+        if (len == 4 && (head[0] & 0xFF | (head[1] & 0xFF) << 8 | (head[2] & 0xFF) << 16 | (head[3] & 0xFF) << 24) == LZ4_MAGIC)
+            return CompressionType.Fast;
+        if (len >= 2 && (head[0] & 0xFF | (head[1] & 0xFF) << 8) == GZIPInputStream.GZIP_MAGIC)
+            return CompressionType.Small;
+        if (len >= 1 && head[0] == TagType.Compound.value)
+            return CompressionType.Uncompressed;
+        if (len >= 3 && ((head[0] & 0xFF) << 16 | (head[1] & 0xFF) << 8 | head[2] & 0xFF) == COMPACT_MAGIC)
+            return CompressionType.Uncompressed;
+        return null;
+    }
+
+    /**
+     * Opens a document of any compression, using <code>compression</code> only if the format could not be detected.
+     * LZ4 frames are decompressed in parallel if <code>compression</code> is {@link CompressionType#FastParallel}.
+     */
+    protected static InputStream decompressDetected(InputStream is, CompressionType compression) throws IOException {
+        PushbackInputStream pis = new PushbackInputStream(is, 4);
+        CompressionType detected = detectCompression(pis);
+        if (detected == null || (detected == CompressionType.Fast && compression == CompressionType.FastParallel))
+            detected = compression;
+        return decompress(pis, detected);
+    }
+
+    /**
+     * Reads the document with all tags allocated from <code>arena</code>
+     */
+    public CompoundTag readFile(InputStream is, CompressionType compression, TagArena arena) throws IOException {
+        this.arena = arena;
+        try {
+            return readFile(is, compression);
+        } finally {
+            this.arena = null;
+        }
+    }
+
+    public CompoundTag readFile(InputStream is, CompressionType compression) throws IOException {
+        InputStream stream = is;
+        try {
+            XXHashInputStream his = new XXHashInputStream(decompressDetected(is, compression));
+            stream = his;
+
+            input = new DataInputStream(stream);
+            CompoundTag t = readDocument();
+            // a selective read may have stopped before the end
+            if (selection == null || selectionRemaining > 0) checkHashFooter(his, his.getValue());
+            return t;
+        } finally {
+            input = null;
+            stream.close();
+        }
+    }
+
+    public CompoundTag readBuffer(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBufferInput bbi = new ByteBufferInput(buffer);
+            input = bbi;
+            CompoundTag t = readDocument();
+
+            ByteBuffer buf = bbi.buffer();
+            int end = buf.position();
+            if (buf.remaining() >= 12 && buf.getInt(end) == HASH_FOOTER
+                    && buf.getLong(end + 4) != IOUtils.getXXHash().hash64().hash(buf, 0, end, 0))
+                throw new IOException("Document hash mismatch");
+            return t;
+        } finally {
+            input = null;
+        }
+    }
+
+    /**
+     * Verifies the hash footer following a document, if there is one
+     *
+     * @param hash the hash of the document read from <code>is</code>
+     */
+    protected static void checkHashFooter(InputStream is, long hash) throws IOException {
+        byte[] footer = new byte[12];
+        int len = 0;
+        for (int read; len < footer.length && (read = is.read(footer, len, footer.length - len)) != -1;)
+            len += read;
+        if (len == 0) return;
+
+        ByteBuffer buf = ByteBuffer.wrap(footer);
+        if (len < footer.length || buf.getInt() != HASH_FOOTER) return;
+        if (buf.getLong() != hash) throw new IOException("Document hash mismatch");
+    }
+
+    /**
+     * Appends the hash footer of the document written through <code>os</code> to its underlying stream
+     */
+    protected static void writeHashFooter(XXHashOutputStream os) throws IOException {
+        long hash = os.getValue();
+        os.out.write(ByteBuffer.allocate(12).putInt(HASH_FOOTER).putLong(hash).array());
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    protected void writeTag(Tag tag, boolean named) throws IOException {
+        if (named) {
+            output.writeByte(tag.type.value);
+            if (tag.name != null) writeString(output, tag.name);
+        }
+        switch (tag.type) {
+            case End:
+                output.writeByte(0);
+                break;
+            case Byte:
+                output.writeByte(((ByteTag) tag).data);
+                break;
+            case Short:
+                output.writeShort(((ShortTag) tag).data);
+                break;
+            case Int:
+                output.writeInt(((IntTag) tag).data);
+                break;
+            case Long:
+                output.writeLong(((LongTag) tag).data);
+                break;
+            case Float:
+                output.writeFloat(((FloatTag) tag).data);
+                break;
+            case Double:
+                output.writeDouble(((DoubleTag) tag).data);
+                break;
+            case ByteArray:
+                output.writeInt(((ByteArrayTag) tag).data.length);
+                output.write(((ByteArrayTag) tag).data);
+                break;
+            case String:
+                writeString(output, ((StringTag) tag).data);
+                break;
+            case List:
+            case Compound:
+                writeCollection((CollectionTag) tag);
+                break;
+            case IntArray:
+                output.writeInt(((IntArrayTag) tag).data.length);
+                writeArray(output, scratch(), ((IntArrayTag) tag).data, tag.type);
+                break;
+            case LongArray:
+                output.writeInt(((LongArrayTag) tag).data.length);
+                writeArray(output, scratch(), ((LongArrayTag) tag).data, tag.type);
+                break;
+            case ShortArray:
+                output.writeInt(((ShortArrayTag) tag).data.length);
+                writeArray(output, scratch(), ((ShortArrayTag) tag).data, tag.type);
+                break;
+            case FloatArray:
+                output.writeInt(((FloatArrayTag) tag).data.length);
+                writeArray(output, scratch(), ((FloatArrayTag) tag).data, tag.type);
+                break;
+            default:
+                throw new IOException("Unknown Tag Type: " + tag.type);
+        }
+    }
+
+    /**
+     * Writes the payload of a list or compound, reusing its cached encoding if it is clean
+     */
+    protected void writeCollection(CollectionTag tag) throws IOException {
+        if (tag.cacheEncoding) {
+            if (tag.dirty || tag.encoded == null) {
+                ByteBufferOutput bbo = new ByteBufferOutput(ByteBuffer.allocate((int) payloadSize(tag)));
+                DataOutput prev = output;
+                output = bbo;
+                try {
+                    writeCollectionPayload(tag);
+                } finally {
+                    output = prev;
                 }
-                case End:
-                default:
-                    break;
+                ByteBuffer buf = bbo.buffer();
+                tag.encoded = buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
             }
-
-            return tag;
+            output.write(tag.encoded);
+        } else {
+            writeCollectionPayload(tag);
         }
 
+        // cleared after the children, so a clean tag never has dirty descendants
+        tag.dirty = false;
     }
 
-    protected CompoundTag readFile(InputStream is, CompressionType compression) throws IOException {
-        Tag.idCounter = 0;
-        InputStream stream = is;
-        is.mark(Integer.MAX_VALUE);
-        try {
-            if (compression == CompressionType.Fast) {
-                if (Gdx.app == null || Gdx.app.getType() == ApplicationType.Desktop)
-                    stream = new LZ4FrameInputStream(is);
-                else
-                    stream = new LZ4FrameInputStream(is, IOUtils.getLZ4().safeDecompressor(),
-                            IOUtils.getXXHash().hash32());
-            } else if (compression == CompressionType.Small) {
-                stream = new GZIPInputStream(is);
-            }
+    protected void writeCollectionPayload(CollectionTag tag) throws IOException {
+        if (tag.type == TagType.List) {
+            ListTag lt = (ListTag) tag;
+            output.writeByte(lt.elementType.value);
+            output.writeInt(lt.size());
+            if (lt instanceof PackedListTag) writePackedList((PackedListTag) lt);
+            else for (Tag t : lt.data)
+                writeTag(t, false);
+        } else {
+            for (Tag t : ((CompoundTag) tag).data.values())
+                writeTag(t, true);
 
-            input = new DataInputStream(stream);
-            CompoundTag t = readTag(true, CompoundTag.class);
-            return t;
-        } catch (IOException e) {
-            e.printStackTrace();
-            stream = is;
-            is.reset();
+            // TAG_End
+            output.writeByte(0);
+        }
+    }
 
-            // try gzip, maybe file format is old
-            if (compression == CompressionType.Fast) {
-                stream = new GZIPInputStream(is);
+    /**
+     * Writes the values of a packed list in bulk, in the same big-endian layout as individual tags
+     */
+    protected void writePackedList(PackedListTag list) throws IOException {
+        int size = list.size;
+        switch (list.elementType) {
+            case Byte:
+                output.write((byte[]) list.values, 0, size);
+                break;
+            case Short:
+                writeArray(output, scratch(), list.values, TagType.ShortArray, size);
+                break;
+            case Int:
+                writeArray(output, scratch(), list.values, TagType.IntArray, size);
+                break;
+            case Long:
+                writeArray(output, scratch(), list.values, TagType.LongArray, size);
+                break;
+            case Float:
+                writeArray(output, scratch(), list.values, TagType.FloatArray, size);
+                break;
+            default: {
+                ByteBuffer buf = scratch();
+                int per = ARRAY_CHUNK / 8;
+                for (int offset = 0; offset < size; offset += per) {
+                    int n = Math.min(per, size - offset);
+                    buf.clear();
+                    buf.asDoubleBuffer().put((double[]) list.values, offset, n);
+                    output.write(buf.array(), 0, n * 8);
+                }
+                break;
             }
-
-            input = new DataInputStream(stream);
-            CompoundTag t = readTag(true, CompoundTag.class);
-            return t;
-        } finally {
-            stream.close();
-            Tag.idCounter = 0;
         }
     }
 
+    /**
+     * Writes the string as UTF-8 bytes prefixed by their length as short
+     */
+    protected static void writeString(DataOutput output, String s) throws IOException {
+        if (output instanceof ByteBufferOutput && ((ByteBufferOutput) output).writeASCII(s)) return;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IOException("String too long: " + bytes.length + " bytes");
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
     //////////////////////////////////////////
     //////////////////////////////////////////
 
-    protected void writeTag(Tag tag, boolean named) throws IOException {
-        if (named) {
-            output.writeByte(tag.type.value);
-            if (tag.name != null) {
-                output.writeShort(tag.name.length());
-                output.write(tag.name.getBytes("UTF-8"));
-            }
+    /**
+     * Writes a compact document. Cached encodings of collections are in the legacy format, so they are neither used
+     * nor updated here
+     */
+    protected void writeCompact(CompoundTag data) throws IOException {
+        output.writeByte(COMPACT_MAGIC >> 16);
+        output.writeShort(COMPACT_MAGIC & 0xFFFF);
+        output.writeByte(COMPACT_VERSION);
+
+        try {
+            output.writeByte(TagType.Compound.value);
+            writeCompactName(data.name != null ? data.name : "");
+            writeCompactPayload(data);
+        } finally {
+            nameIndex.clear();
+        }
+    }
+
+    /**
+     * Writes the index of the name in the dictionary, defining it on first use
+     */
+    protected void writeCompactName(String name) throws IOException {
+        int index = nameIndex.get(name, -1);
+        if (index != -1) {
+            writeVarInt(output, index);
+        } else {
+            writeVarInt(output, nameIndex.size);
+            nameIndex.put(name, nameIndex.size);
+            writeCompactString(name);
         }
+    }
+
+    protected void writeCompactString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    protected void writeCompactPayload(Tag tag) throws IOException {
         switch (tag.type) {
             case End:
-                output.writeByte(0);
                 break;
             case Byte:
                 output.writeByte(((ByteTag) tag).data);
                 break;
             case Short:
-                output.writeShort(((ShortTag) tag).data);
+                writeVarInt(output, zigzag((int) ((ShortTag) tag).data));
                 break;
             case Int:
-                output.writeInt(((IntTag) tag).data);
+                writeVarInt(output, zigzag(((IntTag) tag).data));
                 break;
             case Long:
-                output.writeLong(((LongTag) tag).data);
+                writeVarLong(output, zigzag(((LongTag) tag).data));
                 break;
             case Float:
                 output.writeFloat(((FloatTag) tag).data);
@@ -1705,78 +4240,526 @@ public class NBT {
                 output.writeDouble(((DoubleTag) tag).data);
                 break;
             case ByteArray:
-                output.writeInt(((ByteArrayTag) tag).data.length);
+                writeVarInt(output, ((ByteArrayTag) tag).data.length);
                 output.write(((ByteArrayTag) tag).data);
                 break;
             case String:
-                byte[] bytes = ((StringTag) tag).data.getBytes();
-                output.writeShort(bytes.length);
-                output.write(bytes);
+                writeCompactString(((StringTag) tag).data);
                 break;
             case List:
                 ListTag lt = (ListTag) tag;
+                if (isColumnar(lt)) {
+                    writeColumnar(lt);
+                    break;
+                }
                 output.writeByte(lt.elementType.value);
-                output.writeInt(lt.data.size);
-                for (Tag t : lt.data)
-                    writeTag(t, false);
+                writeVarInt(output, lt.size());
+                if (lt instanceof PackedListTag) writeCompactPackedList((PackedListTag) lt);
+                else for (Tag t : lt.data)
+                    writeCompactPayload(t);
                 break;
             case Compound:
-                for (Tag t : ((CompoundTag) tag).data.values())
-                    writeTag(t, true);
-
+                for (Tag t : ((CompoundTag) tag).data.values()) {
+                    output.writeByte(t.type.value);
+                    writeCompactName(t.name);
+                    writeCompactPayload(t);
+                }
                 // TAG_End
                 output.writeByte(0);
                 break;
             case IntArray:
-                output.writeInt(((IntArrayTag) tag).data.length);
-                for (int i : ((IntArrayTag) tag).data)
-                    output.writeInt(i);
+                writeVarInt(output, ((IntArrayTag) tag).data.length);
+                writeVarArray(((IntArrayTag) tag).data, tag.type);
                 break;
             case LongArray:
-                output.writeInt(((LongArrayTag) tag).data.length);
-                for (long i : ((LongArrayTag) tag).data)
-                    output.writeLong(i);
+                writeVarInt(output, ((LongArrayTag) tag).data.length);
+                writeVarArray(((LongArrayTag) tag).data, tag.type);
                 break;
             case ShortArray:
-                output.writeInt(((ShortArrayTag) tag).data.length);
-                for (short i : ((ShortArrayTag) tag).data)
-                    output.writeShort(i);
+                writeVarInt(output, ((ShortArrayTag) tag).data.length);
+                writeVarArray(((ShortArrayTag) tag).data, tag.type);
                 break;
             case FloatArray:
-                output.writeInt(((FloatArrayTag) tag).data.length);
-                for (float i : ((FloatArrayTag) tag).data)
-                    output.writeFloat(i);
+                writeVarInt(output, ((FloatArrayTag) tag).data.length);
+                writeArray(output, scratch(), ((FloatArrayTag) tag).data, tag.type);
                 break;
             default:
                 throw new IOException("Unknown Tag Type: " + tag.type);
         }
     }
 
-    protected void writeFile(OutputStream os, CompoundTag data, CompressionType compression) throws IOException {
-        Tag.idCounter = 0;
-        if (compression == CompressionType.Fast) {
-            if (Gdx.app == null || Gdx.app.getType() == ApplicationType.Desktop)
-                os = new LZ4FrameOutputStream(os);
+    protected void writeCompactPackedList(PackedListTag list) throws IOException {
+        int size = list.size;
+        switch (list.elementType) {
+            case Short:
+                for (int i = 0; i < size; i++)
+                    writeVarInt(output, zigzag((int) ((short[]) list.values)[i]));
+                break;
+            case Int:
+                for (int i = 0; i < size; i++)
+                    writeVarInt(output, zigzag(((int[]) list.values)[i]));
+                break;
+            case Long:
+                for (int i = 0; i < size; i++)
+                    writeVarLong(output, zigzag(((long[]) list.values)[i]));
+                break;
+            default:
+                // fixed width in both formats
+                writePackedList(list);
+                break;
+        }
+    }
+
+    protected static boolean isColumnType(TagType type) {
+        return type.ordinal() >= TagType.Byte.ordinal() && type.ordinal() <= TagType.Double.ordinal() || type == TagType.String;
+    }
+
+    /**
+     * @return whether the list consists of at least two compounds with the same names and types of numeric or string
+     *         children
+     */
+    protected static boolean isColumnar(ListTag list) {
+        if (list.elementType != TagType.Compound || list.data.size < 2) return false;
+
+        CompoundTag first = (CompoundTag) list.data.first();
+        for (Tag t : first.data.values())
+            if (!isColumnType(t.type)) return false;
+
+        for (int i = 1; i < list.data.size; i++) {
+            CompoundTag c = (CompoundTag) list.data.get(i);
+            if (c.data.size != first.data.size) return false;
+            for (Tag t : first.data.values()) {
+                Tag o = c.data.get(t.name);
+                if (o == null || o.type != t.type) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a list of compounds sharing one schema as struct of arrays: the size, the schema as (type, name) pairs and
+     * then the values of each field contiguously, as bytes, ZigZag varint arrays, raw floats or doubles, or
+     * dictionary references for strings. Columns of similar values compress far better than interleaved rows
+     */
+    protected void writeColumnar(ListTag list) throws IOException {
+        int size = list.data.size;
+        Array<Tag> schema = new Array<>(((CompoundTag) list.data.first()).data.values().toArray());
+
+        output.writeByte(COLUMNAR);
+        writeVarInt(output, size);
+        writeVarInt(output, schema.size);
+        for (Tag t : schema) {
+            output.writeByte(t.type.value);
+            writeCompactName(t.name);
+        }
+
+        for (Tag field : schema) {
+            String name = field.name;
+            switch (field.type) {
+                case Byte: {
+                    byte[] column = new byte[size];
+                    for (int i = 0; i < size; i++)
+                        column[i] = ((ByteTag) ((CompoundTag) list.data.get(i)).data.get(name)).data;
+                    output.write(column);
+                    break;
+                }
+                case Short: {
+                    short[] column = new short[size];
+                    for (int i = 0; i < size; i++)
+                        column[i] = ((ShortTag) ((CompoundTag) list.data.get(i)).data.get(name)).data;
+                    writeVarArray(column, TagType.ShortArray);
+                    break;
+                }
+                case Int: {
+                    int[] column = new int[size];
+                    for (int i = 0; i < size; i++)
+                        column[i] = ((IntTag) ((CompoundTag) list.data.get(i)).data.get(name)).data;
+                    writeVarArray(column, TagType.IntArray);
+                    break;
+                }
+                case Long: {
+                    long[] column = new long[size];
+                    for (int i = 0; i < size; i++)
+                        column[i] = ((LongTag) ((CompoundTag) list.data.get(i)).data.get(name)).data;
+                    writeVarArray(column, TagType.LongArray);
+                    break;
+                }
+                case Float: {
+                    float[] column = new float[size];
+                    for (int i = 0; i < size; i++)
+                        column[i] = ((FloatTag) ((CompoundTag) list.data.get(i)).data.get(name)).data;
+                    writeArray(output, scratch(), column, TagType.FloatArray);
+                    break;
+                }
+                case Double: {
+                    ByteBuffer buf = scratch();
+                    int per = ARRAY_CHUNK / 8;
+                    for (int offset = 0; offset < size; offset += per) {
+                        int n = Math.min(per, size - offset);
+                        buf.clear();
+                        for (int i = 0; i < n; i++)
+                            buf.putDouble(((DoubleTag) ((CompoundTag) list.data.get(offset + i)).data.get(name)).data);
+                        output.write(buf.array(), 0, n * 8);
+                    }
+                    break;
+                }
+                default: {
+                    // strings like types or ids repeat a lot, so they share the name dictionary
+                    for (int i = 0; i < size; i++)
+                        writeCompactName(((StringTag) ((CompoundTag) list.data.get(i)).data.get(name)).data);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the elements of a short, int or long array as ZigZag varints, prefixed by their total size in bytes so
+     * readers can skip or buffer the array as a whole
+     */
+    protected void writeVarArray(Object array, TagType type) throws IOException {
+        int length = java.lang.reflect.Array.getLength(array);
+        long bytes = 0;
+        for (int i = 0; i < length; i++)
+            bytes += varLongSize(zigzagElement(array, type, i));
+        if (bytes > Integer.MAX_VALUE) throw new IOException("Array too large: " + bytes + " bytes");
+        writeVarInt(output, (int) bytes);
+
+        byte[] buf = scratch().array();
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            if (pos > buf.length - 10) {
+                output.write(buf, 0, pos);
+                pos = 0;
+            }
+            long v = zigzagElement(array, type, i);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) (v & 0x7F | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+        output.write(buf, 0, pos);
+    }
+
+    /**
+     * @return the ZigZag encoding of the element, unsigned for short and int arrays
+     */
+    private static long zigzagElement(Object array, TagType type, int index) {
+        switch (type) {
+            case ShortArray:
+                return zigzag((int) ((short[]) array)[index]) & 0xFFFFFFFFL;
+            case IntArray:
+                return zigzag(((int[]) array)[index]) & 0xFFFFFFFFL;
+            default:
+                return zigzag(((long[]) array)[index]);
+        }
+    }
+
+    protected static int varLongSize(long v) {
+        return v == 0 ? 1 : (70 - Long.numberOfLeadingZeros(v)) / 7;
+    }
+
+    protected static void writeVarInt(DataOutput output, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            output.writeByte(v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        output.writeByte(v);
+    }
+
+    protected static void writeVarLong(DataOutput output, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            output.writeByte((int) (v & 0x7F | 0x80));
+            v >>>= 7;
+        }
+        output.writeByte((int) v);
+    }
+
+    protected static OutputStream compress(OutputStream os, CompressionType compression) throws IOException {
+        return compress(os, new CompressionSettings(compression));
+    }
+
+    protected static OutputStream compress(OutputStream os, final CompressionSettings settings) throws IOException {
+        if (settings.type == CompressionType.Fast) {
+            if (settings.contentChecksum)
+                return new LZ4FrameOutputStream(os, settings.blockSize, -1L, settings.compressor(),
+                        IOUtils.getXXHash().hash32(), FLG.Bits.BLOCK_INDEPENDENCE, FLG.Bits.CONTENT_CHECKSUM);
             else
-                os = new LZ4FrameOutputStream(os, BLOCKSIZE.SIZE_4MB, -1L, IOUtils.getLZ4().fastCompressor(),
+                return new LZ4FrameOutputStream(os, settings.blockSize, -1L, settings.compressor(),
                         IOUtils.getXXHash().hash32(), FLG.Bits.BLOCK_INDEPENDENCE);
-        } else if (compression == CompressionType.Small) {
-            os = new GZIPOutputStream(os);
+        } else if (settings.type == CompressionType.FastParallel) {
+            return new ParallelLZ4FrameOutputStream(os, settings.blockSize, settings.compressor(), ForkJoinPool.commonPool(),
+                    settings.contentChecksum);
+        } else if (settings.type == CompressionType.Small) {
+            return new GZIPOutputStream(os) {
+                {
+                    def.setLevel(settings.level);
+                }
+            };
+        }
+        return os;
+    }
+
+    public void writeFile(OutputStream os, CompoundTag data, CompressionType compression) throws IOException {
+        writeFile(os, data, new CompressionSettings(compression));
+    }
+
+    /**
+     * Serializes the document through a reused buffer of {@link #WRITE_BUFFER_SIZE} bytes, which is passed to the
+     * (compressing) stream in one write whenever it is full
+     */
+    public void writeFile(OutputStream os, CompoundTag data, CompressionSettings compression) throws IOException {
+        os = compress(os, compression);
+        if (compression.hashFooter) os = new XXHashOutputStream(os);
+
+        ByteBufferOutput bbo = new ByteBufferOutput(outputBuffer(), os);
+        output = bbo;
+        try {
+            if (compression.compact) writeCompact(data);
+            else writeTag(data, true);
+            bbo.flush();
+            if (compression.hashFooter) writeHashFooter((XXHashOutputStream) os);
+            os.flush();
+        } finally {
+            output = null;
+            os.close();
+        }
+    }
+
+    /**
+     * Writes an uncompressed document without hash footer directly to the channel, other settings go through
+     * {@link #writeFile(OutputStream, CompoundTag, CompressionSettings)}. Does not close the channel.
+     */
+    public void writeFile(WritableByteChannel channel, CompoundTag data, CompressionSettings compression) throws IOException {
+        if (compression.type != CompressionType.Uncompressed || compression.hashFooter) {
+            writeFile(new FilterOutputStream(Channels.newOutputStream(channel)) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, data, compression);
+            return;
+        }
+
+        ByteBufferOutput bbo = new ByteBufferOutput(outputBuffer(), channel);
+        output = bbo;
+        try {
+            if (compression.compact) writeCompact(data);
+            else writeTag(data, true);
+            bbo.flush();
+        } finally {
+            output = null;
+        }
+    }
+
+    /**
+     * Serializes the uncompressed document into a buffer of exactly {@link #serializedSize(Tag)} bytes
+     *
+     * @return the buffer, flipped for reading
+     */
+    public ByteBuffer writeBuffer(CompoundTag data, boolean direct) throws IOException {
+        long size = serializedSize(data);
+        if (size > Integer.MAX_VALUE - 8) throw new IOException("Document too large for a buffer: " + size + " bytes");
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+
+        ByteBufferOutput bbo = new ByteBufferOutput(buf);
+        output = bbo;
+        try {
+            writeTag(data, true);
+        } finally {
+            output = null;
+        }
+        buf = bbo.buffer();
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Computes the xxHash64 of the serialized legacy document without materializing its bytes
+     */
+    public long hashTag(CompoundTag data) throws IOException {
+        return hashTag(data, false);
+    }
+
+    /**
+     * Computes the xxHash64 of the serialized legacy or compact document without materializing its bytes
+     */
+    public long hashTag(CompoundTag data, boolean compact) throws IOException {
+        XXHashOutputStream os = new XXHashOutputStream(null);
+        ByteBufferOutput bbo = new ByteBufferOutput(outputBuffer(), os);
+        output = bbo;
+        try {
+            if (compact) writeCompact(data);
+            else writeTag(data, true);
+            bbo.flush();
+            return os.getValue();
+        } finally {
+            output = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes the tag takes up in an uncompressed legacy document, including its type and name,
+     *         so for the root compound the size of the document without hash footer
+     */
+    public static long serializedSize(Tag tag) {
+        return 1 + (tag.name != null ? 2 + utf8Length(tag.name) : 0) + payloadSize(tag);
+    }
+
+    protected static long payloadSize(Tag tag) {
+        switch (tag.type) {
+            case End:
+            case Byte:
+                return 1;
+            case Short:
+            case Int:
+            case Long:
+            case Float:
+            case Double:
+                return tag.type.width;
+            case ByteArray:
+                return 4 + ((ByteArrayTag) tag).data.length;
+            case String:
+                return 2 + utf8Length(((StringTag) tag).data);
+            case IntArray:
+                return 4 + 4L * ((IntArrayTag) tag).data.length;
+            case LongArray:
+                return 4 + 8L * ((LongArrayTag) tag).data.length;
+            case ShortArray:
+                return 4 + 2L * ((ShortArrayTag) tag).data.length;
+            case FloatArray:
+                return 4 + 4L * ((FloatArrayTag) tag).data.length;
+            case List: {
+                ListTag list = (ListTag) tag;
+                if (list.cacheEncoding && !list.dirty && list.encoded != null) return list.encoded.length;
+                long size = 5;
+                if (list instanceof PackedListTag) return size + (long) list.size() * list.elementType.width;
+                for (Tag t : list.data)
+                    size += payloadSize(t);
+                return size;
+            }
+            case Compound: {
+                CompoundTag compound = (CompoundTag) tag;
+                if (compound.cacheEncoding && !compound.dirty && compound.encoded != null) return compound.encoded.length;
+                long size = 1;
+                for (Tag t : compound.data.values())
+                    size += serializedSize(t);
+                return size;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown Tag Type: " + tag.type);
         }
+    }
 
-        output = new DataOutputStream(os);
-        writeTag(data, true);
-        output = null;
-        os.flush();
-        os.close();
-        Tag.idCounter = 0;
+    /**
+     * @return the length of the string encoded as UTF-8, counting unpaired surrogates as the one byte they are replaced
+     *         with by {@link String#getBytes(java.nio.charset.Charset)}
+     */
+    protected static int utf8Length(String s) {
+        int len = s.length(), bytes = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) bytes++;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) bytes += 2;
+        }
+        return bytes;
     }
 
     //////////////////////////////////////////
     //////////////////////////////////////////
 
     public static CompoundTag read(InputStream is, CompressionType compression) throws IOException {
-        return nbt.readFile(is, compression);
+        return nbt.get().readFile(is, compression);
+    }
+
+    /**
+     * Reads the document with all tags allocated from <code>arena</code>, to be discarded at once with
+     * {@link TagArena#release()}
+     */
+    public static CompoundTag read(InputStream is, CompressionType compression, TagArena arena) throws IOException {
+        return nbt.get().readFile(is, compression, arena);
+    }
+
+    /**
+     * Reads only the tags at the given paths, see {@link #readSelected(InputStream, CompressionType, NBTPath...)}
+     */
+    public static CompoundTag read(InputStream is, CompressionType compression, NBTPath... paths) throws IOException {
+        return nbt.get().readSelected(is, compression, paths);
+    }
+
+    public static CompoundTag read(InputStream is, CompressionType compression, String... paths) throws IOException {
+        NBTPath[] p = new NBTPath[paths.length];
+        for (int i = 0; i < paths.length; i++)
+            p[i] = NBTPath.of(paths[i]);
+        return read(is, compression, p);
+    }
+
+    /**
+     * Parses an uncompressed document from the buffer's current position, without modifying the buffer
+     */
+    public static CompoundTag read(ByteBuffer buffer) throws IOException {
+        return nbt.get().readBuffer(buffer);
+    }
+
+    /**
+     * Parses an uncompressed document, reading large lists of compounds or lists concurrently, see
+     * {@link #readBufferParallel(ByteBuffer, ForkJoinPool)}
+     */
+    public static CompoundTag readParallel(ByteBuffer buffer, ForkJoinPool pool) throws IOException {
+        return nbt.get().readBufferParallel(buffer, pool);
+    }
+
+    public static CompoundTag readParallel(ByteBuffer buffer) throws IOException {
+        return readParallel(buffer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decompresses the whole document into memory first, then parses it in parallel. Use
+     * {@link CompressionType#FastParallel} to decompress LZ4 frames in parallel as well.
+     */
+    public static CompoundTag readParallel(InputStream is, CompressionType compression, ForkJoinPool pool) throws IOException {
+        OptimizedByteArrayOutputStream baos = new OptimizedByteArrayOutputStream(1 << 16);
+        try (InputStream in = decompressDetected(is, compression)) {
+            StreamUtils.copyStream(in, baos, ARRAY_CHUNK);
+        }
+        return readParallel(ByteBuffer.wrap(baos.getBuffer(), 0, baos.size()), pool);
+    }
+
+    /**
+     * Maps an uncompressed file into memory, so only the pages of the regions actually read are loaded
+     */
+    public static MappedByteBuffer mapFile(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Parses an uncompressed file directly from its memory mapping
+     */
+    public static CompoundTag readMapped(File file) throws IOException {
+        return read(mapFile(file));
+    }
+
+    /**
+     * Opens an uncompressed file as lazy view on its memory mapping, decoding only the values accessed
+     */
+    public static LazyTagContainer map(File file) throws IOException {
+        try {
+            return new LazyTagContainer(mapFile(file));
+        } catch (NBTException e) {
+            throw new IOException(e);
+        }
     }
 
     private static final Pattern textRegex = Pattern.compile("(?:([a-zA-Z]+)(?:\\(\"(\\w+)\"\\))?: ?(?:\\d+ entries of type ([a-zA-Z]+)|(.+)))|\\{|\\}");
@@ -1920,12 +4903,152 @@ public class NBT {
     }
 
     public static void write(OutputStream os, CompoundTag data, CompressionType compression) throws IOException {
-        nbt.writeFile(os, data, compression);
+        nbt.get().writeFile(os, data, compression);
+    }
+
+    public static void write(OutputStream os, CompoundTag data, CompressionSettings compression) throws IOException {
+        nbt.get().writeFile(os, data, compression);
+    }
+
+    public static void write(WritableByteChannel channel, CompoundTag data, CompressionSettings compression) throws IOException {
+        nbt.get().writeFile(channel, data, compression);
+    }
+
+    /**
+     * Serializes the uncompressed document into a buffer allocated once with its exact size
+     *
+     * @return the buffer, flipped for reading
+     */
+    public static ByteBuffer toBuffer(CompoundTag data, boolean direct) throws IOException {
+        return nbt.get().writeBuffer(data, direct);
+    }
+
+    /**
+     * Hashes the document as it would be serialized in the legacy format, equal to the hash footer written for it with
+     * {@link CompressionSettings#hashFooter(boolean)} unless the document is written
+     * {@link CompressionSettings#compact(boolean) compact}, see {@link #hash(CompoundTag, CompressionSettings)}. As the
+     * serialized form follows the iteration order of compounds, equal documents are only guaranteed equal hashes if
+     * their compounds were filled the same way.
+     */
+    public static long hash(CompoundTag data) throws IOException {
+        return nbt.get().hashTag(data);
+    }
+
+    /**
+     * Hashes the document as it would be serialized with <code>compression</code>, equal to the hash footer written for
+     * it with these settings. The compression itself does not change the hash, only the format does.
+     */
+    public static long hash(CompoundTag data, CompressionSettings compression) throws IOException {
+        return nbt.get().hashTag(data, compression.compact);
+    }
+
+    /**
+     * Deep copies the tag, including its name but without parent
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Tag> T copy(T tag) {
+        switch (tag.type) {
+            case End:
+                return (T) new EndTag();
+            case Byte:
+                return (T) new ByteTag(tag.name, ((ByteTag) tag).data);
+            case Short:
+                return (T) new ShortTag(tag.name, ((ShortTag) tag).data);
+            case Int:
+                return (T) new IntTag(tag.name, ((IntTag) tag).data);
+            case Long:
+                return (T) new LongTag(tag.name, ((LongTag) tag).data);
+            case Float:
+                return (T) new FloatTag(tag.name, ((FloatTag) tag).data);
+            case Double:
+                return (T) new DoubleTag(tag.name, ((DoubleTag) tag).data);
+            case ByteArray:
+                return (T) new ByteArrayTag(tag.name, ((ByteArrayTag) tag).data.clone());
+            case String:
+                return (T) new StringTag(tag.name, ((StringTag) tag).data);
+            case List: {
+                if (tag instanceof PackedListTag) return (T) ((PackedListTag) tag).copy();
+                ListTag list = new ListTag(tag.name, ((ListTag) tag).elementType);
+                for (Tag t : ((ListTag) tag).data)
+                    list.add(copy(t));
+                return (T) list;
+            }
+            case Compound: {
+                CompoundTag compound = new CompoundTag(tag.name);
+                for (Tag t : ((CompoundTag) tag).data.values())
+                    compound.add(copy(t));
+                return (T) compound;
+            }
+            case IntArray:
+                return (T) new IntArrayTag(tag.name, ((IntArrayTag) tag).data.clone());
+            case LongArray:
+                return (T) new LongArrayTag(tag.name, ((LongArrayTag) tag).data.clone());
+            case ShortArray:
+                return (T) new ShortArrayTag(tag.name, ((ShortArrayTag) tag).data.clone());
+            case FloatArray:
+                return (T) new FloatArrayTag(tag.name, ((FloatArrayTag) tag).data.clone());
+            default:
+                throw new IllegalArgumentException("Unknown Tag Type: " + tag.type);
+        }
+    }
+
+    /**
+     * Checks a document against its hash footer without parsing it
+     *
+     * @return <code>false</code> if the document is corrupt or has no hash footer
+     */
+    public static boolean verify(InputStream is, CompressionType compression) throws IOException {
+        try (InputStream stream = decompressDetected(is, compression)) {
+            StreamingXXHash64 hash = IOUtils.getXXHash().newStreamingHash64(0);
+            byte[] buf = new byte[ARRAY_CHUNK + 12];
+            int len = 0;
+            for (int read; (read = stream.read(buf, len, buf.length - len)) != -1;) {
+                len += read;
+                if (len == buf.length) {
+                    hash.update(buf, 0, len - 12);
+                    System.arraycopy(buf, len - 12, buf, 0, 12);
+                    len = 12;
+                }
+            }
+            if (len < 12) return false;
+
+            hash.update(buf, 0, len - 12);
+            ByteBuffer footer = ByteBuffer.wrap(buf, len - 12, 12);
+            return footer.getInt() == HASH_FOOTER && footer.getLong() == hash.getValue();
+        }
     }
 
     //////////////////////////////////////////
     //////////////////////////////////////////
 
+    protected static final int QUERY_CACHE_SIZE = 64;
+
+    /**
+     * Least recently used compiled queries
+     */
+    protected static final LinkedHashMap<String, Query> queryCache = new LinkedHashMap<String, Query>(QUERY_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > QUERY_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Parses the query, or returns the plan of an earlier call with the same query from a small LRU cache
+     */
+    public static Query compileQuery(String query) {
+        synchronized (queryCache) {
+            Query q = queryCache.get(query);
+            if (q == null) {
+                q = new Query(query);
+                queryCache.put(query, q);
+            }
+            return q;
+        }
+    }
+
     public static Filter parseFilter(String s) {
         if (s.contains(",")) {
             String[] parts = s.split(",");
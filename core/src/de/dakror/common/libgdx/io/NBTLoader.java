@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.badlogic.gdx.files.FileHandle;
+
+import de.dakror.common.libgdx.io.NBT.CollectionTag;
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+import de.dakror.common.libgdx.io.NBT.ListTag;
+import de.dakror.common.libgdx.io.NBT.PackedListTag;
+import de.dakror.common.libgdx.io.NBT.Tag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * Reads a document in slices of limited time, so a loading scene can spread the work over several frames.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * NBTLoader loader = new NBTLoader(Gdx.files.local("world.nbt"), CompressionType.Fast);
+ * // every frame
+ * if (loader.step(8_000_000)) world = loader.result();
+ * else progressBar.setValue(loader.progress());
+ * </pre>
+ *
+ * Produces the same tree as {@link NBT#read(InputStream, CompressionType)} for legacy and compact documents.
+ * Compounds and lists are parsed with an explicit stack, one child per unit of work. Other tags, columnar and packed
+ * lists are read as a whole, so a single huge array or a block of the decompressor may exceed the budget.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTLoader implements Closeable {
+    /**
+     * Units of work between two checks of the clock
+     */
+    protected static final int CHECK_INTERVAL = 64;
+
+    protected static class CountingInputStream extends FilterInputStream {
+        protected long count;
+
+        protected CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = super.skip(n);
+            count += s;
+            return s;
+        }
+    }
+
+    protected final NBT codec = new NBT();
+    protected final CountingInputStream source;
+    protected final XXHashInputStream stream;
+    protected final long totalBytes;
+
+    protected boolean started, done, compact;
+    protected CompoundTag result;
+
+    protected int depth;
+    protected CollectionTag[] stack = new CollectionTag[16];
+    protected int[] remaining = new int[16];
+
+    /**
+     * @param totalBytes size of <code>is</code> for {@link #progress()}, or <code>0</code> if unknown
+     */
+    public NBTLoader(InputStream is, CompressionType compression, long totalBytes) throws IOException {
+        this.totalBytes = totalBytes;
+        source = new CountingInputStream(is);
+        try {
+            stream = new XXHashInputStream(NBT.decompressDetected(source, compression));
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+        codec.input = new DataInputStream(stream);
+    }
+
+    public NBTLoader(FileHandle file, CompressionType compression) throws IOException {
+        this(file.read(), compression, file.length());
+    }
+
+    /**
+     * Reads lists of numbers as {@link PackedListTag}, see {@link NBT#packLists(boolean)}
+     */
+    public NBTLoader packLists(boolean packLists) {
+        codec.packLists(packLists);
+        return this;
+    }
+
+    /**
+     * Continues reading until the document is finished or roughly <code>nanosBudget</code> passed. Closes the stream
+     * once finished or failed.
+     *
+     * @return <code>true</code> if the document is finished
+     */
+    public boolean step(long nanosBudget) throws IOException {
+        if (done) return true;
+
+        long deadline = System.nanoTime() + nanosBudget;
+        try {
+            do {
+                for (int i = 0; i < CHECK_INTERVAL && !done; i++)
+                    advance();
+            } while (!done && System.nanoTime() - deadline < 0);
+
+            if (done) {
+                NBT.checkHashFooter(stream, stream.getValue());
+                close();
+            }
+        } catch (IOException | RuntimeException e) {
+            done = true;
+            result = null;
+            close();
+            throw e;
+        }
+        return done;
+    }
+
+    /**
+     * Reads the rest of the document at once
+     */
+    public CompoundTag loadFully() throws IOException {
+        step(Long.MAX_VALUE / 2);
+        return result;
+    }
+
+    protected void advance() throws IOException {
+        if (!started) {
+            started = true;
+            byte b = codec.input.readByte();
+            compact = b == (byte) (NBT.COMPACT_MAGIC >> 16);
+            if (compact) {
+                codec.readCompactHeader();
+                b = codec.input.readByte();
+            }
+            if (b != TagType.Compound.value) throw new IOException("Invalid root Tag Type: " + b);
+
+            result = codec.obtain(CompoundTag.class);
+            result.name = compact ? codec.readCompactName() : codec.readName();
+            push(result, 0);
+            return;
+        }
+
+        CollectionTag top = stack[depth - 1];
+        Tag child;
+        if (top instanceof CompoundTag) {
+            TagType type = NBT.tagType(codec.input.readByte());
+            if (type == TagType.End) {
+                pop();
+                return;
+            }
+            String name = compact ? codec.readCompactName() : codec.readName();
+            child = begin(type);
+            child.name = name;
+        } else {
+            if (remaining[depth - 1] == 0) {
+                pop();
+                return;
+            }
+            remaining[depth - 1]--;
+            child = begin(((ListTag) top).elementType);
+        }
+
+        // collections are added to their parent once complete
+        if (child != stack[depth - 1]) top.add(child);
+    }
+
+    /**
+     * Reads a tag as a whole, or pushes it to the stack if it is a compound or a list of elements
+     */
+    protected Tag begin(TagType type) throws IOException {
+        if (type == TagType.Compound) {
+            CompoundTag tag = codec.obtain(CompoundTag.class);
+            push(tag, 0);
+            return tag;
+        }
+        if (type != TagType.List) return compact ? codec.readCompactPayload(type) : codec.readTag(type);
+
+        TagType element;
+        int size;
+        if (compact) {
+            byte b = codec.input.readByte();
+            if (b == NBT.COLUMNAR) {
+                ListTag tag = codec.obtain(ListTag.class);
+                codec.readColumnar(tag);
+                return tag;
+            }
+            element = NBT.tagType(b);
+            size = codec.readLength();
+        } else {
+            element = NBT.tagType(codec.input.readByte());
+            size = codec.input.readInt();
+            if (size < 0) throw new IOException("Invalid length: " + size);
+        }
+
+        if (codec.packLists && PackedListTag.isPackable(element)) return codec.readPackedList(element, size, compact);
+
+        ListTag tag = codec.obtain(ListTag.class);
+        tag.elementType = element;
+        push(tag, size);
+        return tag;
+    }
+
+    protected void push(CollectionTag tag, int size) {
+        if (depth == stack.length) {
+            CollectionTag[] s = new CollectionTag[depth * 2];
+            System.arraycopy(stack, 0, s, 0, depth);
+            stack = s;
+            int[] r = new int[depth * 2];
+            System.arraycopy(remaining, 0, r, 0, depth);
+            remaining = r;
+        }
+        stack[depth] = tag;
+        remaining[depth] = size;
+        depth++;
+    }
+
+    protected void pop() {
+        CollectionTag tag = stack[--depth];
+        stack[depth] = null;
+        if (depth == 0) {
+            done = true;
+            codec.nameTable.clear();
+        } else {
+            stack[depth - 1].add(tag);
+        }
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the document once finished, otherwise or if reading failed <code>null</code>
+     */
+    public CompoundTag result() {
+        return done ? result : null;
+    }
+
+    /**
+     * @return the number of bytes read from the source stream, compressed if the document is compressed
+     */
+    public long bytesRead() {
+        return source.count;
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the share of the source stream read so far, between 0 and 1. Stays 0 until finished if the total size
+     *         is unknown
+     */
+    public float progress() {
+        if (done) return 1;
+        if (totalBytes <= 0) return 0;
+        return Math.min(1, (float) source.count / totalBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
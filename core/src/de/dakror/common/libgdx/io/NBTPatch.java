@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.lang.reflect.Array;
+
+import com.badlogic.gdx.utils.IntArray;
+
+import de.dakror.common.libgdx.io.NBT.ByteArrayTag;
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.FloatArrayTag;
+import de.dakror.common.libgdx.io.NBT.IntArrayTag;
+import de.dakror.common.libgdx.io.NBT.ListTag;
+import de.dakror.common.libgdx.io.NBT.LongArrayTag;
+import de.dakror.common.libgdx.io.NBT.NBTException;
+import de.dakror.common.libgdx.io.NBT.ShortArrayTag;
+import de.dakror.common.libgdx.io.NBT.StringTag;
+import de.dakror.common.libgdx.io.NBT.Tag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * Structural diff between two documents, stored as a regular {@link CompoundTag} so it can be written with any
+ * compression, e.g. as incremental autosave between two full snapshots.
+ * <p>
+ * A patch of a compound consists of the optional children
+ * <ul>
+ * <li><code>set</code>: compound of added or replaced tags</li>
+ * <li><code>remove</code>: list of names of removed tags</li>
+ * <li><code>nested</code>: compound of patches for changed children, by name</li>
+ * </ul>
+ * Lists of equal length and element type are patched the same way, with the element index as name. Primitive arrays
+ * of equal length are patched by the changed runs, as <code>runs</code> of start and length pairs followed by their
+ * <code>values</code>.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTPatch {
+    public static final String SET = "set";
+    public static final String REMOVE = "remove";
+    public static final String NESTED = "nested";
+    public static final String RUNS = "runs";
+    public static final String VALUES = "values";
+
+    /**
+     * Unchanged array elements between two changed ones up to which both are stored as one run
+     */
+    protected static final int RUN_GAP = 8;
+
+    /**
+     * Computes the patch turning <code>from</code> into <code>to</code>. Neither document is modified.
+     *
+     * @return the patch, empty if both documents are equal
+     */
+    public static CompoundTag diff(CompoundTag from, CompoundTag to) {
+        CompoundTag patch = new CompoundTag("patch");
+        diffCompound(from, to, patch);
+        return patch;
+    }
+
+    public static boolean isEmpty(CompoundTag patch) {
+        return patch.data.size == 0;
+    }
+
+    protected static void diffCompound(CompoundTag from, CompoundTag to, CompoundTag patch) {
+        CompoundTag set = null, nested = null;
+        ListTag remove = null;
+
+        for (Tag t : to.data.values()) {
+            Tag f = from.data.get(t.name);
+            if (f != null && f.equals(t)) continue;
+
+            CompoundTag child = f != null ? diffChild(f, t, t.name) : null;
+            if (child != null) {
+                if (nested == null) nested = new CompoundTag(NESTED);
+                nested.add(child);
+            } else {
+                if (set == null) set = new CompoundTag(SET);
+                set.add(NBT.copy(t));
+            }
+        }
+
+        for (Tag f : from.data.values()) {
+            if (!to.data.containsKey(f.name)) {
+                if (remove == null) remove = new ListTag(REMOVE, TagType.String);
+                remove.add(new StringTag(null, f.name));
+            }
+        }
+
+        if (set != null) patch.add(set);
+        if (remove != null) patch.add(remove);
+        if (nested != null) patch.add(nested);
+    }
+
+    protected static void diffList(ListTag from, ListTag to, CompoundTag patch) {
+        CompoundTag set = null, nested = null;
+
+        for (int i = 0; i < to.size(); i++) {
+            Tag f = from.get(i), t = to.get(i);
+            if (f.equals(t)) continue;
+
+            String index = Integer.toString(i);
+            CompoundTag child = diffChild(f, t, index);
+            if (child != null) {
+                if (nested == null) nested = new CompoundTag(NESTED);
+                nested.add(child);
+            } else {
+                if (set == null) set = new CompoundTag(SET);
+                Tag copy = NBT.copy(t);
+                copy.name = index;
+                set.add(copy);
+            }
+        }
+
+        if (set != null) patch.add(set);
+        if (nested != null) patch.add(nested);
+    }
+
+    /**
+     * @return the patch between two differing tags or <code>null</code> if the tag has to be replaced as a whole
+     */
+    protected static CompoundTag diffChild(Tag from, Tag to, String name) {
+        if (from.type != to.type) return null;
+
+        CompoundTag patch = new CompoundTag(name);
+        switch (to.type) {
+            case Compound:
+                diffCompound((CompoundTag) from, (CompoundTag) to, patch);
+                return patch;
+            case List:
+                if (((ListTag) from).elementType != ((ListTag) to).elementType || ((ListTag) from).size() != ((ListTag) to).size())
+                    return null;
+                diffList((ListTag) from, (ListTag) to, patch);
+                return patch;
+            case ByteArray:
+            case IntArray:
+            case LongArray:
+            case ShortArray:
+            case FloatArray:
+                return diffArray(from.data(), to.data(), to.type, patch) ? patch : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the arrays differ in length or too much to be worth storing as runs
+     */
+    protected static boolean diffArray(Object from, Object to, TagType type, CompoundTag patch) {
+        int length = Array.getLength(to);
+        if (Array.getLength(from) != length) return false;
+
+        IntArray runs = new IntArray();
+        int changed = 0;
+        for (int i = 0; i < length; i++) {
+            if (!differs(from, to, i, type)) continue;
+
+            int start = i, end = i + 1, gap = 0;
+            for (int j = end; j < length && gap <= RUN_GAP; j++) {
+                if (differs(from, to, j, type)) {
+                    end = j + 1;
+                    gap = 0;
+                } else gap++;
+            }
+            runs.add(start);
+            runs.add(end - start);
+            changed += end - start;
+            i = end;
+        }
+
+        if (changed > length / 2) return false;
+
+        Object values = Array.newInstance(to.getClass().getComponentType(), changed);
+        for (int i = 0, offset = 0; i < runs.size; i += 2) {
+            System.arraycopy(to, runs.get(i), values, offset, runs.get(i + 1));
+            offset += runs.get(i + 1);
+        }
+
+        patch.add(new IntArrayTag(RUNS, runs.toArray()));
+        Tag v = arrayTag(type, values);
+        v.name = VALUES;
+        patch.add(v);
+        return true;
+    }
+
+    protected static boolean differs(Object a, Object b, int i, TagType type) {
+        switch (type) {
+            case ByteArray:
+                return ((byte[]) a)[i] != ((byte[]) b)[i];
+            case IntArray:
+                return ((int[]) a)[i] != ((int[]) b)[i];
+            case LongArray:
+                return ((long[]) a)[i] != ((long[]) b)[i];
+            case ShortArray:
+                return ((short[]) a)[i] != ((short[]) b)[i];
+            case FloatArray:
+                return Float.floatToIntBits(((float[]) a)[i]) != Float.floatToIntBits(((float[]) b)[i]);
+            default:
+                throw new IllegalArgumentException("Not an array type: " + type);
+        }
+    }
+
+    protected static Tag arrayTag(TagType type, Object values) {
+        switch (type) {
+            case ByteArray:
+                return new ByteArrayTag(null, (byte[]) values);
+            case IntArray:
+                return new IntArrayTag(null, (int[]) values);
+            case LongArray:
+                return new LongArrayTag(null, (long[]) values);
+            case ShortArray:
+                return new ShortArrayTag(null, (short[]) values);
+            case FloatArray:
+                return new FloatArrayTag(null, (float[]) values);
+            default:
+                throw new IllegalArgumentException("Not an array type: " + type);
+        }
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    /**
+     * Applies the patch to <code>target</code> in place
+     *
+     * @throws NBTException if the document does not have the structure the patch was computed from
+     */
+    public static void apply(CompoundTag target, CompoundTag patch) throws NBTException {
+        applyChild(target, patch, "");
+    }
+
+    protected static void applyChild(Tag target, CompoundTag patch, String path) throws NBTException {
+        switch (target.type) {
+            case Compound:
+                applyCompound((CompoundTag) target, patch, path);
+                break;
+            case List:
+                applyList((ListTag) target, patch, path);
+                break;
+            case ByteArray:
+            case IntArray:
+            case LongArray:
+            case ShortArray:
+            case FloatArray:
+                applyArray(target, patch, path);
+                break;
+            default:
+                throw new NBTException("Patch does not match document at \"" + path + "\", can not patch " + target.type);
+        }
+    }
+
+    protected static void applyCompound(CompoundTag target, CompoundTag patch, String path) throws NBTException {
+        ListTag remove = (ListTag) patch.get(REMOVE, TagType.List);
+        if (remove != null) {
+            for (Tag name : remove.data)
+                target.data.remove(((StringTag) name).data);
+            target.markDirty();
+            target.structureChanged();
+        }
+
+        CompoundTag set = patch.CompoundOpt(SET);
+        if (set != null) {
+            for (Tag t : set.data.values())
+                target.add(NBT.copy(t));
+        }
+
+        CompoundTag nested = patch.CompoundOpt(NESTED);
+        if (nested != null) {
+            for (Tag t : nested.data.values()) {
+                Tag child = target.get(t.name);
+                if (child == null) throw new NBTException("Patch does not match document, missing \"" + path + "/" + t.name + "\"");
+                applyChild(child, (CompoundTag) t, path + "/" + t.name);
+            }
+        }
+    }
+
+    protected static void applyList(ListTag target, CompoundTag patch, String path) throws NBTException {
+        CompoundTag set = patch.CompoundOpt(SET);
+        if (set != null) {
+            for (Tag t : set.data.values()) {
+                int index = index(target, t.name, path);
+                Tag copy = NBT.copy(t);
+                copy.name = null;
+                if (copy.type != target.elementType)
+                    throw new NBTException("Patch does not match document at \"" + path + "/" + t.name + "\", expected " + target.elementType);
+                target.set(index, copy);
+            }
+        }
+
+        CompoundTag nested = patch.CompoundOpt(NESTED);
+        if (nested != null) {
+            for (Tag t : nested.data.values())
+                applyChild(target.get(index(target, t.name, path)), (CompoundTag) t, path + "/" + t.name);
+        }
+    }
+
+    protected static int index(ListTag target, String name, String path) throws NBTException {
+        try {
+            int index = Integer.parseInt(name);
+            if (index >= 0 && index < target.size()) return index;
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new NBTException("Patch does not match document, no element \"" + path + "/" + name + "\"");
+    }
+
+    protected static void applyArray(Tag target, CompoundTag patch, String path) throws NBTException {
+        int[] runs = patch.IntArray(RUNS);
+        Tag values = patch.getWithException(VALUES, target.type);
+        Object array = target.data();
+        int length = Array.getLength(array);
+
+        for (int i = 0, offset = 0; i < runs.length; i += 2) {
+            if (runs[i] < 0 || runs[i] + runs[i + 1] > length)
+                throw new NBTException("Patch does not match document at \"" + path + "\", run outside of array");
+            System.arraycopy(values.data(), offset, array, runs[i], runs[i + 1]);
+            offset += runs[i + 1];
+        }
+        target.markDirty();
+    }
+}
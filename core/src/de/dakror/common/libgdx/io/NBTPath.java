@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+
+import de.dakror.common.libgdx.io.NBT.ByteArrayTag;
+import de.dakror.common.libgdx.io.NBT.ByteTag;
+import de.dakror.common.libgdx.io.NBT.CollectionTag;
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.DoubleTag;
+import de.dakror.common.libgdx.io.NBT.FloatArrayTag;
+import de.dakror.common.libgdx.io.NBT.FloatTag;
+import de.dakror.common.libgdx.io.NBT.IntArrayTag;
+import de.dakror.common.libgdx.io.NBT.IntTag;
+import de.dakror.common.libgdx.io.NBT.ListTag;
+import de.dakror.common.libgdx.io.NBT.LongArrayTag;
+import de.dakror.common.libgdx.io.NBT.LongTag;
+import de.dakror.common.libgdx.io.NBT.PackedListTag;
+import de.dakror.common.libgdx.io.NBT.ShortArrayTag;
+import de.dakror.common.libgdx.io.NBT.ShortTag;
+import de.dakror.common.libgdx.io.NBT.StringTag;
+import de.dakror.common.libgdx.io.NBT.Tag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * Precompiled path to a nested tag, like <code>player.inventory.slots[2].count</code>. Names are separated by dots,
+ * list elements are addressed by their index in brackets. Paths are immutable and meant to be kept in constants.
+ * <p>
+ * Resolving a path neither throws nor allocates, a missing tag or a tag of the wrong type yields <code>null</code> or
+ * the given default value. Elements of a {@link PackedListTag} are read from its array directly. For repeated lookups
+ * in large documents see {@link Index}.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTPath {
+    static final AtomicInteger idCounter = new AtomicInteger();
+
+    public final String path;
+    protected final int id;
+
+    /**
+     * Per step either the name of the child or <code>null</code> for an index step
+     */
+    protected final String[] names;
+    protected final int[] indices;
+
+    protected NBTPath(String path, String[] names, int[] indices) {
+        this.path = path;
+        this.names = names;
+        this.indices = indices;
+        id = idCounter.getAndIncrement();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the path is malformed
+     */
+    public static NBTPath of(String path) {
+        Array<String> names = new Array<>(String.class);
+        IntArray indices = new IntArray();
+
+        for (String part : path.split("\\.", -1)) {
+            int bracket = part.indexOf('[');
+            String name = bracket == -1 ? part : part.substring(0, bracket);
+            if (name.isEmpty() && bracket != 0) throw new IllegalArgumentException("Empty name in path \"" + path + "\"");
+            if (!name.isEmpty()) {
+                names.add(name);
+                indices.add(-1);
+            }
+
+            while (bracket != -1) {
+                int end = part.indexOf(']', bracket);
+                if (end == -1) throw new IllegalArgumentException("Unclosed index in path \"" + path + "\"");
+                int index;
+                try {
+                    index = Integer.parseInt(part.substring(bracket + 1, end));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid index in path \"" + path + "\"", e);
+                }
+                if (index < 0) throw new IllegalArgumentException("Negative index in path \"" + path + "\"");
+                names.add(null);
+                indices.add(index);
+
+                if (end == part.length() - 1) bracket = -1;
+                else if (part.charAt(end + 1) == '[') bracket = end + 1;
+                else throw new IllegalArgumentException("Unexpected character after index in path \"" + path + "\"");
+            }
+        }
+
+        return new NBTPath(path, names.toArray(), indices.toArray());
+    }
+
+    public int length() {
+        return names.length;
+    }
+
+    /**
+     * @return the collection containing the tag addressed by this path or <code>null</code>
+     */
+    public CollectionTag parent(CompoundTag root) {
+        Tag t = root;
+        for (int i = 0; i < names.length - 1 && t != null; i++)
+            t = step(t, i);
+        return t instanceof CollectionTag ? (CollectionTag) t : null;
+    }
+
+    protected Tag step(Tag t, int i) {
+        if (names[i] != null) {
+            return t instanceof CompoundTag ? ((CompoundTag) t).data.get(names[i]) : null;
+        }
+        if (!(t instanceof ListTag)) return null;
+        ListTag list = (ListTag) t;
+        return indices[i] < list.size() ? list.get(indices[i]) : null;
+    }
+
+    /**
+     * @return the addressed element of a packed list or <code>null</code> if the path does not end in one
+     */
+    protected PackedListTag packed(CollectionTag parent, TagType elementType) {
+        int last = names.length - 1;
+        if (names[last] != null || !(parent instanceof PackedListTag)) return null;
+        PackedListTag list = (PackedListTag) parent;
+        return list.elementType == elementType && indices[last] < list.size() ? list : null;
+    }
+
+    protected Tag leaf(CollectionTag parent, TagType type) {
+        if (parent == null) return null;
+        Tag t = step(parent, names.length - 1);
+        return t != null && t.type == type ? t : null;
+    }
+
+    public Tag get(CompoundTag root) {
+        CollectionTag parent = parent(root);
+        return parent != null ? step(parent, names.length - 1) : null;
+    }
+
+    public Tag get(CompoundTag root, TagType type) {
+        return leaf(parent(root), type);
+    }
+
+    public boolean exists(CompoundTag root) {
+        return get(root) != null;
+    }
+
+    /////////////////////////////////////////
+
+    public byte Byte(CompoundTag root, byte defaultValue) {
+        return Byte(parent(root), defaultValue);
+    }
+
+    protected byte Byte(CollectionTag parent, byte defaultValue) {
+        PackedListTag list = packed(parent, TagType.Byte);
+        if (list != null) return list.getByte(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Byte);
+        return t != null ? ((ByteTag) t).data : defaultValue;
+    }
+
+    public short Short(CompoundTag root, short defaultValue) {
+        return Short(parent(root), defaultValue);
+    }
+
+    protected short Short(CollectionTag parent, short defaultValue) {
+        PackedListTag list = packed(parent, TagType.Short);
+        if (list != null) return list.getShort(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Short);
+        return t != null ? ((ShortTag) t).data : defaultValue;
+    }
+
+    public int Int(CompoundTag root, int defaultValue) {
+        return Int(parent(root), defaultValue);
+    }
+
+    protected int Int(CollectionTag parent, int defaultValue) {
+        PackedListTag list = packed(parent, TagType.Int);
+        if (list != null) return list.getInt(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Int);
+        return t != null ? ((IntTag) t).data : defaultValue;
+    }
+
+    public long Long(CompoundTag root, long defaultValue) {
+        return Long(parent(root), defaultValue);
+    }
+
+    protected long Long(CollectionTag parent, long defaultValue) {
+        PackedListTag list = packed(parent, TagType.Long);
+        if (list != null) return list.getLong(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Long);
+        return t != null ? ((LongTag) t).data : defaultValue;
+    }
+
+    public float Float(CompoundTag root, float defaultValue) {
+        return Float(parent(root), defaultValue);
+    }
+
+    protected float Float(CollectionTag parent, float defaultValue) {
+        PackedListTag list = packed(parent, TagType.Float);
+        if (list != null) return list.getFloat(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Float);
+        return t != null ? ((FloatTag) t).data : defaultValue;
+    }
+
+    public double Double(CompoundTag root, double defaultValue) {
+        return Double(parent(root), defaultValue);
+    }
+
+    protected double Double(CollectionTag parent, double defaultValue) {
+        PackedListTag list = packed(parent, TagType.Double);
+        if (list != null) return list.getDouble(indices[names.length - 1]);
+        Tag t = leaf(parent, TagType.Double);
+        return t != null ? ((DoubleTag) t).data : defaultValue;
+    }
+
+    public String String(CompoundTag root, String defaultValue) {
+        return String(parent(root), defaultValue);
+    }
+
+    protected String String(CollectionTag parent, String defaultValue) {
+        Tag t = leaf(parent, TagType.String);
+        return t != null ? ((StringTag) t).data : defaultValue;
+    }
+
+    public byte[] ByteArray(CompoundTag root, byte[] defaultValue) {
+        Tag t = get(root, TagType.ByteArray);
+        return t != null ? ((ByteArrayTag) t).data : defaultValue;
+    }
+
+    public int[] IntArray(CompoundTag root, int[] defaultValue) {
+        Tag t = get(root, TagType.IntArray);
+        return t != null ? ((IntArrayTag) t).data : defaultValue;
+    }
+
+    public long[] LongArray(CompoundTag root, long[] defaultValue) {
+        Tag t = get(root, TagType.LongArray);
+        return t != null ? ((LongArrayTag) t).data : defaultValue;
+    }
+
+    public short[] ShortArray(CompoundTag root, short[] defaultValue) {
+        Tag t = get(root, TagType.ShortArray);
+        return t != null ? ((ShortArrayTag) t).data : defaultValue;
+    }
+
+    public float[] FloatArray(CompoundTag root, float[] defaultValue) {
+        Tag t = get(root, TagType.FloatArray);
+        return t != null ? ((FloatArrayTag) t).data : defaultValue;
+    }
+
+    public CompoundTag Compound(CompoundTag root) {
+        return (CompoundTag) get(root, TagType.Compound);
+    }
+
+    public ListTag List(CompoundTag root) {
+        return (ListTag) get(root, TagType.List);
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    //////////////////////////////////////////
+    //////////////////////////////////////////
+
+    /**
+     * Caches the collections that paths end in for one document, so resolving a known path costs a single lookup.
+     * The cache is dropped whenever tags are added to, removed from or replaced in the document, values may change
+     * freely. Not thread-safe.
+     */
+    public static class Index {
+        protected static final CollectionTag MISSING = new CompoundTag();
+
+        public final CompoundTag root;
+        protected final IntMap<CollectionTag> parents = new IntMap<>();
+        protected int version;
+
+        public Index(CompoundTag root) {
+            this.root = root;
+            version = root.version;
+        }
+
+        protected CollectionTag parent(NBTPath path) {
+            if (version != root.version) {
+                parents.clear();
+                version = root.version;
+            }
+
+            CollectionTag parent = parents.get(path.id);
+            if (parent == null) {
+                parent = path.parent(root);
+                parents.put(path.id, parent != null ? parent : MISSING);
+            }
+            return parent != MISSING ? parent : null;
+        }
+
+        public Tag get(NBTPath path) {
+            CollectionTag parent = parent(path);
+            return parent != null ? path.step(parent, path.names.length - 1) : null;
+        }
+
+        public Tag get(NBTPath path, TagType type) {
+            return path.leaf(parent(path), type);
+        }
+
+        public byte Byte(NBTPath path, byte defaultValue) {
+            return path.Byte(parent(path), defaultValue);
+        }
+
+        public short Short(NBTPath path, short defaultValue) {
+            return path.Short(parent(path), defaultValue);
+        }
+
+        public int Int(NBTPath path, int defaultValue) {
+            return path.Int(parent(path), defaultValue);
+        }
+
+        public long Long(NBTPath path, long defaultValue) {
+            return path.Long(parent(path), defaultValue);
+        }
+
+        public float Float(NBTPath path, float defaultValue) {
+            return path.Float(parent(path), defaultValue);
+        }
+
+        public double Double(NBTPath path, double defaultValue) {
+            return path.Double(parent(path), defaultValue);
+        }
+
+        public String String(NBTPath path, String defaultValue) {
+            return path.String(parent(path), defaultValue);
+        }
+
+        /**
+         * Drops all cached paths
+         */
+        public void clear() {
+            parents.clear();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+import de.dakror.common.libgdx.io.NBT.Tag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+
+/**
+ * Pull parser over the binary NBT format that never builds a tag tree.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * NBTReader r = new NBTReader(is, CompressionType.Fast);
+ * r.nextTag(); // root compound
+ * r.enterCompound();
+ * while (r.nextTag() != TagType.End) {
+ *     if (r.nameEquals("version")) version = r.intValue();
+ * }
+ * </pre>
+ *
+ * {@link #nextTag()} skips the payload of the previous tag if it was not read. Reaching the end of the current
+ * container returns {@link TagType#End} and leaves the container.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTReader implements Closeable {
+    protected final DataInput input;
+    protected final Closeable closeable;
+
+    protected TagType type;
+    protected boolean pending;
+    protected boolean started;
+
+    protected byte[] nameBuffer = new byte[64];
+    protected int nameLength = -1;
+    protected String name;
+
+    protected ByteBuffer scratch;
+
+    protected int depth;
+    protected TagType[] containerTypes = new TagType[16];
+    protected TagType[] elementTypes = new TagType[16];
+    protected int[] remaining = new int[16];
+
+    public NBTReader(InputStream is, CompressionType compression) throws IOException {
+        InputStream stream = NBT.decompressDetected(is, compression);
+        if (!(stream instanceof LZ4FrameInputStream || stream instanceof ParallelLZ4FrameInputStream)) stream = new BufferedInputStream(stream);
+        input = new DataInputStream(stream);
+        closeable = stream;
+    }
+
+    public NBTReader(DataInput input) {
+        this.input = input;
+        closeable = input instanceof Closeable ? (Closeable) input : null;
+    }
+
+    /**
+     * Advances to the next tag of the current container, skipping the unread payload of the current tag.
+     *
+     * @return the type of the new tag or {@link TagType#End} if the current container (or the document) is finished
+     */
+    public TagType nextTag() throws IOException {
+        if (pending) skip();
+
+        name = null;
+        nameLength = -1;
+
+        if (depth == 0) {
+            if (started) return type = TagType.End;
+            started = true;
+            type = readType();
+            if (type == TagType.End) return type;
+            readName();
+        } else if (containerTypes[depth - 1] == TagType.Compound) {
+            type = readType();
+            if (type == TagType.End) {
+                depth--;
+                return type;
+            }
+            readName();
+        } else {
+            if (remaining[depth - 1] == 0) {
+                depth--;
+                return type = TagType.End;
+            }
+            remaining[depth - 1]--;
+            type = elementTypes[depth - 1];
+        }
+
+        pending = true;
+        return type;
+    }
+
+    protected ByteBuffer scratch() {
+        if (scratch == null) scratch = ByteBuffer.allocate(NBT.ARRAY_CHUNK);
+        return scratch;
+    }
+
+    protected TagType readType() throws IOException {
+        byte b = input.readByte();
+        if (depth == 0 && b == (byte) (NBT.COMPACT_MAGIC >> 16))
+            throw new IOException("Compact documents can not be streamed, use NBT.read");
+        TagType t = b >= 0 ? NBT.reverseTags[b] : null;
+        if (t == null) throw new IOException("Unknown Tag Type: " + b);
+        return t;
+    }
+
+    protected void readName() throws IOException {
+        nameLength = input.readUnsignedShort();
+        if (nameBuffer.length < nameLength) nameBuffer = new byte[Math.max(nameLength, nameBuffer.length * 2)];
+        input.readFully(nameBuffer, 0, nameLength);
+    }
+
+    public TagType type() {
+        return type;
+    }
+
+    /**
+     * @return the name of the current tag or null if it is a list element. Only allocates on first call per tag
+     */
+    public String name() {
+        if (name == null && nameLength >= 0)
+            name = new String(nameBuffer, 0, nameLength, StandardCharsets.UTF_8);
+        return name;
+    }
+
+    /**
+     * Compares the name of the current tag without decoding it
+     */
+    public boolean nameEquals(String name) {
+        if (nameLength < 0) return name == null;
+        if (name == null) return false;
+        if (this.name != null) return this.name.equals(name);
+
+        int len = name.length();
+        if (len > nameLength) return false;
+        for (int i = 0; i < len; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) return name().equals(name);
+            if (nameBuffer[i] != c) return false;
+        }
+        return len == nameLength;
+    }
+
+    /**
+     * @return the current nesting depth, 0 being outside of the root tag
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * @return the element type of the innermost list entered, or null if the current container is a compound
+     */
+    public TagType listType() {
+        if (depth == 0 || containerTypes[depth - 1] != TagType.List) return null;
+        return elementTypes[depth - 1];
+    }
+
+    protected void checkPending(TagType expected) {
+        if (!pending) throw new IllegalStateException("Payload of the current tag has already been consumed");
+        if (type != expected)
+            throw new IllegalStateException("Invalid Tag Type! Expected \"" + expected + "\", got \"" + type + "\"");
+        pending = false;
+    }
+
+    protected void push(TagType container, TagType element, int size) {
+        if (depth == containerTypes.length) {
+            int len = depth * 2;
+            TagType[] c = new TagType[len];
+            TagType[] e = new TagType[len];
+            int[] r = new int[len];
+            System.arraycopy(containerTypes, 0, c, 0, depth);
+            System.arraycopy(elementTypes, 0, e, 0, depth);
+            System.arraycopy(remaining, 0, r, 0, depth);
+            containerTypes = c;
+            elementTypes = e;
+            remaining = r;
+        }
+        containerTypes[depth] = container;
+        elementTypes[depth] = element;
+        remaining[depth] = size;
+        depth++;
+    }
+
+    /**
+     * Steps into the current compound tag, its children are returned by subsequent calls to {@link #nextTag()}
+     */
+    public void enterCompound() {
+        checkPending(TagType.Compound);
+        push(TagType.Compound, null, -1);
+    }
+
+    /**
+     * Steps into the current list tag, its elements are returned by subsequent calls to {@link #nextTag()}
+     *
+     * @return the number of elements in the list
+     */
+    public int enterList() throws IOException {
+        checkPending(TagType.List);
+        TagType element = readType();
+        int size = input.readInt();
+        push(TagType.List, element, size);
+        return size;
+    }
+
+    /**
+     * Skips all remaining tags of the current container and leaves it
+     */
+    public void exit() throws IOException {
+        if (depth == 0) throw new IllegalStateException("Not inside a container");
+        int d = depth;
+        while (depth >= d)
+            nextTag();
+    }
+
+    /**
+     * Skips the payload of the current tag
+     */
+    public void skip() throws IOException {
+        if (!pending) return;
+        pending = false;
+        skipPayload(type);
+    }
+
+    protected void skipPayload(TagType type) throws IOException {
+        switch (type) {
+            case End:
+                break;
+            case Byte:
+            case Short:
+            case Int:
+            case Long:
+            case Float:
+            case Double:
+                skipFully(type.width);
+                break;
+            case String:
+                skipFully(input.readUnsignedShort());
+                break;
+            case ByteArray:
+            case IntArray:
+            case LongArray:
+            case ShortArray:
+            case FloatArray:
+                skipFully((long) input.readInt() * type.width);
+                break;
+            case List: {
+                TagType element = readType();
+                int size = input.readInt();
+                if (element.ordinal() >= TagType.Byte.ordinal() && element.ordinal() <= TagType.Double.ordinal()) {
+                    skipFully((long) size * element.width);
+                } else {
+                    for (int i = 0; i < size; i++)
+                        skipPayload(element);
+                }
+                break;
+            }
+            case Compound:
+                while (true) {
+                    TagType t = readType();
+                    if (t == TagType.End) break;
+                    skipFully(input.readUnsignedShort());
+                    skipPayload(t);
+                }
+                break;
+            default:
+                throw new IOException("Unknown Tag Type: " + type);
+        }
+    }
+
+    protected void skipFully(long n) throws IOException {
+        while (n > 0) {
+            int s = input.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (s <= 0) {
+                input.readByte();
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+
+    /////////////////////////////////////////
+
+    public byte byteValue() throws IOException {
+        checkPending(TagType.Byte);
+        return input.readByte();
+    }
+
+    public short shortValue() throws IOException {
+        checkPending(TagType.Short);
+        return input.readShort();
+    }
+
+    public int intValue() throws IOException {
+        checkPending(TagType.Int);
+        return input.readInt();
+    }
+
+    public long longValue() throws IOException {
+        checkPending(TagType.Long);
+        return input.readLong();
+    }
+
+    public float floatValue() throws IOException {
+        checkPending(TagType.Float);
+        return input.readFloat();
+    }
+
+    public double doubleValue() throws IOException {
+        checkPending(TagType.Double);
+        return input.readDouble();
+    }
+
+    public String stringValue() throws IOException {
+        checkPending(TagType.String);
+        byte[] data = new byte[input.readUnsignedShort()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    public byte[] byteArrayValue() throws IOException {
+        checkPending(TagType.ByteArray);
+        byte[] data = new byte[input.readInt()];
+        input.readFully(data);
+        return data;
+    }
+
+    public int[] intArrayValue() throws IOException {
+        checkPending(TagType.IntArray);
+        int[] data = new int[input.readInt()];
+        NBT.readArray(input, scratch(), data, TagType.IntArray);
+        return data;
+    }
+
+    public long[] longArrayValue() throws IOException {
+        checkPending(TagType.LongArray);
+        long[] data = new long[input.readInt()];
+        NBT.readArray(input, scratch(), data, TagType.LongArray);
+        return data;
+    }
+
+    public short[] shortArrayValue() throws IOException {
+        checkPending(TagType.ShortArray);
+        short[] data = new short[input.readInt()];
+        NBT.readArray(input, scratch(), data, TagType.ShortArray);
+        return data;
+    }
+
+    public float[] floatArrayValue() throws IOException {
+        checkPending(TagType.FloatArray);
+        float[] data = new float[input.readInt()];
+        NBT.readArray(input, scratch(), data, TagType.FloatArray);
+        return data;
+    }
+
+    /**
+     * Materializes the current tag and its whole subtree, using the tag pools of the calling thread's codec
+     */
+    public Tag readTag() throws IOException {
+        if (!pending) throw new IllegalStateException("Payload of the current tag has already been consumed");
+        pending = false;
+
+        NBT nbt = NBT.get();
+        DataInput prev = nbt.input;
+        nbt.input = input;
+        try {
+            Tag tag = nbt.readPayload(type, null);
+            tag.name = name();
+            return tag;
+        } finally {
+            nbt.input = prev;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeable != null) closeable.close();
+    }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class for <code>de.dakror.annotations.NBTSerializableProcessor</code>, which generates a class
+ * <code>&lt;Name&gt;NBT</code> next to it with reflection-free <code>toNBT</code>, <code>fromNBT</code>,
+ * <code>write(NBTWriter)</code> and <code>read(NBTReader)</code> methods.
+ * <p>
+ * All non-static, non-transient fields are serialized, including inherited ones. They must be accessible from the
+ * package of the class and of a primitive, <code>String</code>, primitive array, enum or <code>@NBTSerializable</code>
+ * type. Booleans are stored as bytes, enums by name. <code>null</code> values are omitted, missing tags leave the
+ * field at its initial value. The class needs a non-private no-arg constructor.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(value = { ElementType.TYPE })
+public @interface NBTSerializable {
+    /**
+     * Overrides the tag name of a field, which defaults to the field name
+     */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(value = { ElementType.FIELD })
+    public @interface Name {
+        String value();
+    }
+}
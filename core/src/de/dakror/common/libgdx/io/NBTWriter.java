@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import de.dakror.common.libgdx.io.NBT.CompressionSettings;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+import de.dakror.common.libgdx.io.NBT.Tag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * Streaming counterpart of {@link NBT.Builder}, which emits the binary format directly instead of building a tag
+ * tree first. Unnamed methods write list elements, named ones write compound children.
+ *
+ * <pre>
+ * NBTWriter w = new NBTWriter(os, CompressionType.Fast);
+ * w.beginCompound("world")
+ *         .writeInt("version", 3)
+ *         .beginList("entities", TagType.Compound, 1)
+ *         .beginCompound().writeFloat("x", 1).end()
+ *         .end()
+ *         .end();
+ * w.close();
+ * </pre>
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTWriter implements Closeable {
+    protected final DataOutput output;
+    protected final OutputStream stream;
+
+    protected ByteBuffer scratch;
+
+    protected int depth;
+    protected boolean started;
+    protected TagType[] containerTypes = new TagType[16];
+    protected TagType[] elementTypes = new TagType[16];
+    protected int[] remaining = new int[16];
+
+    public NBTWriter(OutputStream os, CompressionType compression) throws IOException {
+        this(os, new CompressionSettings(compression));
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>compression</code> asks for the compact format, which only
+     *             {@link NBT#write(OutputStream, NBT.CompoundTag, CompressionSettings)} produces
+     */
+    public NBTWriter(OutputStream os, CompressionSettings compression) throws IOException {
+        if (compression.compact) throw new IllegalArgumentException("Compact documents can not be streamed, use NBT.write");
+        if (compression.hashFooter)
+            stream = new XXHashOutputStream(NBT.compress(os, compression));
+        else
+            stream = compression.type == CompressionType.Fast || compression.type == CompressionType.FastParallel
+                    ? NBT.compress(os, compression)
+                    : new BufferedOutputStream(NBT.compress(os, compression));
+        output = new DataOutputStream(stream);
+    }
+
+    public NBTWriter(DataOutput output) {
+        this.output = output;
+        stream = null;
+    }
+
+    protected ByteBuffer scratch() {
+        if (scratch == null) scratch = ByteBuffer.allocate(NBT.ARRAY_CHUNK);
+        return scratch;
+    }
+
+    protected void header(TagType type, String name) throws IOException {
+        if (depth == 0) {
+            if (started || type != TagType.Compound)
+                throw new IllegalStateException("Documents consist of exactly one root compound");
+            started = true;
+            output.writeByte(type.value);
+            if (name != null) NBT.writeString(output, name);
+        } else if (containerTypes[depth - 1] == TagType.Compound) {
+            if (name == null)
+                throw new IllegalStateException("Compound Tag expects named tags, got no name");
+            output.writeByte(type.value);
+            NBT.writeString(output, name);
+        } else {
+            if (type != elementTypes[depth - 1])
+                throw new IllegalStateException("Incompatible Tag Types in List Tag, wanted \"" + elementTypes[depth - 1] + "\", got \"" + type + "\"");
+            if (remaining[depth - 1] == 0)
+                throw new IllegalStateException("List Tag already contains all announced elements");
+            remaining[depth - 1]--;
+        }
+    }
+
+    protected void push(TagType container, TagType element, int size) {
+        if (depth == containerTypes.length) {
+            int len = depth * 2;
+            TagType[] c = new TagType[len];
+            TagType[] e = new TagType[len];
+            int[] r = new int[len];
+            System.arraycopy(containerTypes, 0, c, 0, depth);
+            System.arraycopy(elementTypes, 0, e, 0, depth);
+            System.arraycopy(remaining, 0, r, 0, depth);
+            containerTypes = c;
+            elementTypes = e;
+            remaining = r;
+        }
+        containerTypes[depth] = container;
+        elementTypes[depth] = element;
+        remaining[depth] = size;
+        depth++;
+    }
+
+    public NBTWriter beginCompound(String name) throws IOException {
+        header(TagType.Compound, name);
+        push(TagType.Compound, null, -1);
+        return this;
+    }
+
+    public NBTWriter beginCompound() throws IOException {
+        return beginCompound(null);
+    }
+
+    /**
+     * Starts a list. As the wire format is length prefixed, exactly <code>count</code> elements have to follow before
+     * {@link #end()}.
+     */
+    public NBTWriter beginList(String name, TagType type, int count) throws IOException {
+        header(TagType.List, name);
+        output.writeByte(type.value);
+        output.writeInt(count);
+        push(TagType.List, type, count);
+        return this;
+    }
+
+    public NBTWriter beginList(TagType type, int count) throws IOException {
+        return beginList(null, type, count);
+    }
+
+    /**
+     * Closes the innermost compound or list
+     */
+    public NBTWriter end() throws IOException {
+        if (depth == 0) throw new IllegalStateException("No open Compound or List Tag");
+        if (containerTypes[depth - 1] == TagType.Compound) {
+            // TAG_End
+            output.writeByte(0);
+        } else if (remaining[depth - 1] > 0) {
+            throw new IllegalStateException("List Tag is missing " + remaining[depth - 1] + " elements");
+        }
+        depth--;
+        return this;
+    }
+
+    /////////////////////////////////////////
+
+    public NBTWriter writeByte(String name, byte value) throws IOException {
+        header(TagType.Byte, name);
+        output.writeByte(value);
+        return this;
+    }
+
+    public NBTWriter writeByte(byte value) throws IOException {
+        return writeByte(null, value);
+    }
+
+    public NBTWriter writeShort(String name, short value) throws IOException {
+        header(TagType.Short, name);
+        output.writeShort(value);
+        return this;
+    }
+
+    public NBTWriter writeShort(short value) throws IOException {
+        return writeShort(null, value);
+    }
+
+    public NBTWriter writeInt(String name, int value) throws IOException {
+        header(TagType.Int, name);
+        output.writeInt(value);
+        return this;
+    }
+
+    public NBTWriter writeInt(int value) throws IOException {
+        return writeInt(null, value);
+    }
+
+    public NBTWriter writeLong(String name, long value) throws IOException {
+        header(TagType.Long, name);
+        output.writeLong(value);
+        return this;
+    }
+
+    public NBTWriter writeLong(long value) throws IOException {
+        return writeLong(null, value);
+    }
+
+    public NBTWriter writeFloat(String name, float value) throws IOException {
+        header(TagType.Float, name);
+        output.writeFloat(value);
+        return this;
+    }
+
+    public NBTWriter writeFloat(float value) throws IOException {
+        return writeFloat(null, value);
+    }
+
+    public NBTWriter writeDouble(String name, double value) throws IOException {
+        header(TagType.Double, name);
+        output.writeDouble(value);
+        return this;
+    }
+
+    public NBTWriter writeDouble(double value) throws IOException {
+        return writeDouble(null, value);
+    }
+
+    public NBTWriter writeString(String name, String value) throws IOException {
+        header(TagType.String, name);
+        NBT.writeString(output, value);
+        return this;
+    }
+
+    public NBTWriter writeString(String value) throws IOException {
+        return writeString(null, value);
+    }
+
+    public NBTWriter writeByteArray(String name, byte[] value) throws IOException {
+        header(TagType.ByteArray, name);
+        output.writeInt(value.length);
+        output.write(value);
+        return this;
+    }
+
+    public NBTWriter writeByteArray(byte[] value) throws IOException {
+        return writeByteArray(null, value);
+    }
+
+    public NBTWriter writeIntArray(String name, int[] value) throws IOException {
+        header(TagType.IntArray, name);
+        output.writeInt(value.length);
+        NBT.writeArray(output, scratch(), value, TagType.IntArray);
+        return this;
+    }
+
+    public NBTWriter writeIntArray(int[] value) throws IOException {
+        return writeIntArray(null, value);
+    }
+
+    public NBTWriter writeLongArray(String name, long[] value) throws IOException {
+        header(TagType.LongArray, name);
+        output.writeInt(value.length);
+        NBT.writeArray(output, scratch(), value, TagType.LongArray);
+        return this;
+    }
+
+    public NBTWriter writeLongArray(long[] value) throws IOException {
+        return writeLongArray(null, value);
+    }
+
+    public NBTWriter writeShortArray(String name, short[] value) throws IOException {
+        header(TagType.ShortArray, name);
+        output.writeInt(value.length);
+        NBT.writeArray(output, scratch(), value, TagType.ShortArray);
+        return this;
+    }
+
+    public NBTWriter writeShortArray(short[] value) throws IOException {
+        return writeShortArray(null, value);
+    }
+
+    public NBTWriter writeFloatArray(String name, float[] value) throws IOException {
+        header(TagType.FloatArray, name);
+        output.writeInt(value.length);
+        NBT.writeArray(output, scratch(), value, TagType.FloatArray);
+        return this;
+    }
+
+    public NBTWriter writeFloatArray(float[] value) throws IOException {
+        return writeFloatArray(null, value);
+    }
+
+    /**
+     * Writes an existing tag including its subtree, using its name if the current container is a compound
+     */
+    public NBTWriter writeTag(Tag tag) throws IOException {
+        boolean named = depth == 0 || containerTypes[depth - 1] == TagType.Compound;
+        header(tag.type, named ? tag.name : null);
+
+        NBT nbt = NBT.get();
+        DataOutput prev = nbt.output;
+        nbt.output = output;
+        try {
+            nbt.writeTag(tag, false);
+        } finally {
+            nbt.output = prev;
+        }
+        return this;
+    }
+
+    /**
+     * Closes the underlying stream. The hash footer is only written if the root compound has been ended, so a document
+     * abandoned half way through is left truncated and fails validation instead of being completed silently.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (started && depth == 0 && stream instanceof XXHashOutputStream) NBT.writeHashFooter((XXHashOutputStream) stream);
+        } finally {
+            if (stream != null) {
+                stream.flush();
+                stream.close();
+            }
+        }
+    }
+}
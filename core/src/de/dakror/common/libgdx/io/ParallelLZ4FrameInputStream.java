@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import static de.dakror.common.libgdx.io.ParallelLZ4FrameOutputStream.*;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHash32;
+
+/**
+ * Reads a standard LZ4 frame with independent blocks, decompressing the blocks ahead of the reader concurrently on a
+ * {@link ForkJoinPool}. Only a single frame is read, like {@link net.jpountz.lz4.LZ4FrameInputStream} frames with
+ * dependent blocks are not supported.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class ParallelLZ4FrameInputStream extends FilterInputStream {
+    protected static class Block {
+        final byte[] data;
+        final byte[] compressed;
+        int length;
+        int compressedLength;
+        int expectedChecksum;
+        ForkJoinTask<?> task;
+
+        Block(int maxBlockSize) {
+            data = new byte[maxBlockSize];
+            compressed = new byte[maxBlockSize];
+        }
+    }
+
+    protected final LZ4SafeDecompressor decompressor;
+    protected final XXHash32 checksum;
+    protected final StreamingXXHash32 contentChecksum;
+    protected final ForkJoinPool pool;
+    protected final int maxPending;
+
+    protected int flags;
+    protected int maxBlockSize;
+
+    protected final ArrayDeque<Block> pending = new ArrayDeque<>();
+    protected final ArrayDeque<Block> free = new ArrayDeque<>();
+    protected Block current;
+    protected int position;
+    protected boolean endOfFrame;
+    protected int expectedContentChecksum;
+    protected boolean closed;
+    protected final byte[] intBuffer = new byte[4];
+
+    public ParallelLZ4FrameInputStream(InputStream in) throws IOException {
+        this(in, IOUtils.getLZ4().safeDecompressor(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool the pool decompressing the blocks. At most twice its parallelism blocks are read ahead
+     */
+    public ParallelLZ4FrameInputStream(InputStream in, LZ4SafeDecompressor decompressor, ForkJoinPool pool) throws IOException {
+        super(in);
+        this.decompressor = decompressor;
+        this.pool = pool;
+        checksum = IOUtils.getXXHash().hash32();
+        maxPending = Math.max(2, pool.getParallelism() * 2);
+        readHeader();
+        contentChecksum = (flags & FLG_CONTENT_CHECKSUM) != 0 ? IOUtils.getXXHash().newStreamingHash32(0) : null;
+    }
+
+    protected void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) throw new EOFException();
+            off += n;
+            len -= n;
+        }
+    }
+
+    protected int readIntLE() throws IOException {
+        readFully(intBuffer, 0, 4);
+        return (intBuffer[0] & 0xFF) | (intBuffer[1] & 0xFF) << 8 | (intBuffer[2] & 0xFF) << 16 | (intBuffer[3] & 0xFF) << 24;
+    }
+
+    protected void readHeader() throws IOException {
+        if (readIntLE() != MAGIC) throw new IOException("Not an LZ4 frame");
+
+        byte[] descriptor = new byte[14];
+        readFully(descriptor, 0, 2);
+        flags = descriptor[0] & 0xFF;
+        if ((flags & 0xC0) != VERSION) throw new IOException("Unsupported LZ4 frame version");
+        if ((flags & FLG_BLOCK_INDEPENDENCE) == 0) throw new IOException("Dependent block stream is unsupported");
+        maxBlockSize = 1 << (8 + 2 * ((descriptor[1] >> 4) & 0x7));
+
+        int length = 2;
+        if ((flags & FLG_CONTENT_SIZE) != 0) length += 8;
+        if ((flags & 0x01) != 0) length += 4; // dictionary id
+        readFully(descriptor, 2, length - 2);
+
+        int hc = in.read();
+        if (hc != ((checksum.hash(descriptor, 0, length, 0) >> 8) & 0xFF)) throw new IOException("LZ4 frame header checksum mismatch");
+    }
+
+    /**
+     * Reads compressed blocks from the underlying stream and submits them until enough are in flight
+     */
+    protected void fill() throws IOException {
+        while (!endOfFrame && pending.size() < maxPending) {
+            int size = readIntLE();
+            if (size == 0) {
+                endOfFrame = true;
+                if (contentChecksum != null) expectedContentChecksum = readIntLE();
+                break;
+            }
+
+            boolean uncompressed = (size & UNCOMPRESSED_BIT) != 0;
+            size &= ~UNCOMPRESSED_BIT;
+            if (size > maxBlockSize) throw new IOException("LZ4 block exceeds maximum block size");
+
+            Block b = free.poll();
+            if (b == null) b = new Block(maxBlockSize);
+
+            if (uncompressed) {
+                readFully(b.data, 0, size);
+                b.length = size;
+            } else {
+                readFully(b.compressed, 0, size);
+                b.compressedLength = size;
+            }
+            if ((flags & FLG_BLOCK_CHECKSUM) != 0) b.expectedChecksum = readIntLE();
+
+            if (!uncompressed || (flags & FLG_BLOCK_CHECKSUM) != 0) {
+                final Block block = b;
+                final boolean decompress = !uncompressed;
+                b.task = pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if ((flags & FLG_BLOCK_CHECKSUM) != 0) {
+                            int hash = decompress ? checksum.hash(block.compressed, 0, block.compressedLength, 0)
+                                    : checksum.hash(block.data, 0, block.length, 0);
+                            if (hash != block.expectedChecksum) throw new IllegalStateException("LZ4 block checksum mismatch");
+                        }
+                        if (decompress)
+                            block.length = decompressor.decompress(block.compressed, 0, block.compressedLength, block.data, 0, block.data.length);
+                    }
+                });
+            }
+            pending.add(b);
+        }
+    }
+
+    /**
+     * @return whether a block with remaining data is available
+     */
+    protected boolean nextBlock() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (current == null || position == current.length) {
+            if (current != null) {
+                current.task = null;
+                free.add(current);
+                current = null;
+            }
+
+            fill();
+            if (pending.isEmpty()) {
+                if (contentChecksum != null && contentChecksum.getValue() != expectedContentChecksum)
+                    throw new IOException("LZ4 content checksum mismatch");
+                return false;
+            }
+
+            Block b = pending.poll();
+
+            if (b.task != null) {
+                try {
+                    b.task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            if (contentChecksum != null) contentChecksum.update(b.data, 0, b.length);
+            current = b;
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) return -1;
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextBlock()) return -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && nextBlock()) {
+            int s = (int) Math.min(n - skipped, current.length - position);
+            position += s;
+            skipped += s;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (Block b : pending)
+            if (b != null && b.task != null) b.task.cancel(false);
+        pending.clear();
+        free.clear();
+        current = null;
+        in.close();
+    }
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHash32;
+
+/**
+ * Writes a standard LZ4 frame with independent blocks, compressing the blocks concurrently on a {@link ForkJoinPool}.
+ * Blocks are written in order, so the output is readable by {@link net.jpountz.lz4.LZ4FrameInputStream} and
+ * {@link ParallelLZ4FrameInputStream} alike.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class ParallelLZ4FrameOutputStream extends FilterOutputStream {
+    static final int MAGIC = 0x184D2204;
+    static final int VERSION = 0x40;
+    static final int FLG_BLOCK_INDEPENDENCE = 0x20;
+    static final int FLG_BLOCK_CHECKSUM = 0x10;
+    static final int FLG_CONTENT_SIZE = 0x08;
+    static final int FLG_CONTENT_CHECKSUM = 0x04;
+    static final int UNCOMPRESSED_BIT = 0x80000000;
+
+    protected static class Block {
+        final byte[] data;
+        final byte[] compressed;
+        int length;
+        int compressedLength;
+        ForkJoinTask<?> task;
+
+        Block(int blockSize, int maxCompressedLength) {
+            data = new byte[blockSize];
+            compressed = new byte[maxCompressedLength];
+        }
+    }
+
+    protected final LZ4Compressor compressor;
+    protected final ForkJoinPool pool;
+    protected final int blockSize;
+    protected final int maxPending;
+    protected final StreamingXXHash32 contentChecksum;
+
+    protected final ArrayDeque<Block> pending = new ArrayDeque<>();
+    protected final ArrayDeque<Block> free = new ArrayDeque<>();
+    protected Block current;
+    protected final byte[] intBuffer = new byte[4];
+    protected boolean closed;
+
+    public ParallelLZ4FrameOutputStream(OutputStream out) throws IOException {
+        this(out, BLOCKSIZE.SIZE_4MB, IOUtils.getLZ4().fastCompressor(), ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * @param pool the pool compressing the blocks. At most twice its parallelism blocks are buffered at once
+     * @param contentChecksum whether to append a checksum of the uncompressed content to the frame
+     */
+    public ParallelLZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, LZ4Compressor compressor, ForkJoinPool pool,
+            boolean contentChecksum) throws IOException {
+        super(out);
+        this.compressor = compressor;
+        this.pool = pool;
+        this.blockSize = 1 << (8 + 2 * blockSize.getIndicator());
+        maxPending = Math.max(2, pool.getParallelism() * 2);
+        this.contentChecksum = contentChecksum ? IOUtils.getXXHash().newStreamingHash32(0) : null;
+        writeHeader(blockSize, IOUtils.getXXHash().hash32());
+    }
+
+    protected void writeHeader(BLOCKSIZE blockSize, XXHash32 checksum) throws IOException {
+        byte[] header = new byte[7];
+        writeIntLE(MAGIC, header, 0);
+        header[4] = (byte) (VERSION | FLG_BLOCK_INDEPENDENCE | (contentChecksum != null ? FLG_CONTENT_CHECKSUM : 0));
+        header[5] = (byte) (blockSize.getIndicator() << 4);
+        header[6] = (byte) ((checksum.hash(header, 4, 2, 0) >> 8) & 0xFF);
+        out.write(header);
+    }
+
+    static void writeIntLE(int i, byte[] buf, int off) {
+        buf[off] = (byte) i;
+        buf[off + 1] = (byte) (i >>> 8);
+        buf[off + 2] = (byte) (i >>> 16);
+        buf[off + 3] = (byte) (i >>> 24);
+    }
+
+    protected void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    protected Block obtainBlock() {
+        Block b = free.poll();
+        return b != null ? b : new Block(blockSize, compressor.maxCompressedLength(blockSize));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (current == null) current = obtainBlock();
+        current.data[current.length++] = (byte) b;
+        if (current.length == blockSize) submit();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (current == null) current = obtainBlock();
+            int n = Math.min(len, blockSize - current.length);
+            System.arraycopy(b, off, current.data, current.length, n);
+            current.length += n;
+            off += n;
+            len -= n;
+            if (current.length == blockSize) submit();
+        }
+    }
+
+    protected void submit() throws IOException {
+        final Block b = current;
+        current = null;
+        if (contentChecksum != null) contentChecksum.update(b.data, 0, b.length);
+        b.task = pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                b.compressedLength = compressor.compress(b.data, 0, b.length, b.compressed, 0, b.compressed.length);
+            }
+        });
+        pending.add(b);
+
+        while (pending.size() >= maxPending)
+            writeBlock(pending.poll());
+    }
+
+    protected void writeBlock(Block b) throws IOException {
+        try {
+            b.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        if (b.compressedLength >= b.length) {
+            writeIntLE(b.length | UNCOMPRESSED_BIT, intBuffer, 0);
+            out.write(intBuffer);
+            out.write(b.data, 0, b.length);
+        } else {
+            writeIntLE(b.compressedLength, intBuffer, 0);
+            out.write(intBuffer);
+            out.write(b.compressed, 0, b.compressedLength);
+        }
+
+        b.task = null;
+        b.length = 0;
+        free.add(b);
+    }
+
+    /**
+     * Writes all buffered data as blocks, waiting for their compression to finish
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (current != null && current.length > 0) submit();
+        while (!pending.isEmpty())
+            writeBlock(pending.poll());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            flush();
+            writeIntLE(0, intBuffer, 0);
+            out.write(intBuffer);
+            if (contentChecksum != null) {
+                writeIntLE(contentChecksum.getValue(), intBuffer, 0);
+                out.write(intBuffer);
+            }
+        } finally {
+            closed = true;
+            pending.clear();
+            free.clear();
+            out.close();
+        }
+    }
+}
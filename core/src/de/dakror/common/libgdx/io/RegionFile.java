@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
+
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.CompressionSettings;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+
+/**
+ * Container file storing up to <code>capacity</code> independently compressed documents, addressed by an integer
+ * key. Writing one entry only touches the sectors of that entry and its slot in the header.
+ * <p>
+ * Layout: a header of magic, version, capacity and a table of (first sector, sector count) per key, followed by
+ * {@value #SECTOR_SIZE} byte sectors. Every entry starts with its length in bytes, followed by the document in the
+ * compression it was written with. Freed sectors are reused by later writes, {@link #compact()} moves entries
+ * towards the start of the file and truncates it. All methods are thread-safe.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class RegionFile implements Closeable {
+    public static final int SECTOR_SIZE = 4096;
+
+    protected static final int MAGIC = 0x4E425452; // NBTR
+    protected static final int VERSION = 1;
+    protected static final int HEADER_SIZE = 12;
+
+    protected final RandomAccessFile file;
+    protected final FileChannel channel;
+    protected final int capacity;
+    protected final int headerSectors;
+    protected CompressionSettings compression;
+
+    protected final int[] offsets;
+    protected final int[] sectors;
+    protected final BitSet used = new BitSet();
+    protected int sectorCount;
+
+    /**
+     * Opens the region at <code>f</code>, creating it with the given capacity if it does not exist
+     */
+    public RegionFile(File f, int capacity, CompressionSettings compression) throws IOException {
+        this.compression = compression;
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+
+        try {
+            if (channel.size() == 0) {
+                this.capacity = capacity;
+                headerSectors = sectorsFor(HEADER_SIZE + capacity * 8);
+                ByteBuffer header = ByteBuffer.allocate(headerSectors * SECTOR_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(capacity).rewind();
+                writeFully(header, 0);
+            } else {
+                ByteBuffer header = readFully(HEADER_SIZE, 0);
+                if (header.getInt() != MAGIC) throw new IOException("Not a region file: " + f);
+                if (header.getInt() != VERSION) throw new IOException("Unsupported region file version: " + f);
+                this.capacity = header.getInt();
+                headerSectors = sectorsFor(HEADER_SIZE + this.capacity * 8);
+            }
+
+            offsets = new int[this.capacity];
+            sectors = new int[this.capacity];
+            sectorCount = (int) ((channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE);
+            used.set(0, headerSectors);
+
+            ByteBuffer table = readFully(this.capacity * 8, HEADER_SIZE);
+            for (int i = 0; i < this.capacity; i++) {
+                offsets[i] = table.getInt();
+                sectors[i] = table.getInt();
+                if (sectors[i] == 0) continue;
+                if (offsets[i] < headerSectors || offsets[i] + sectors[i] > sectorCount) {
+                    // corrupt slot, treat as empty
+                    offsets[i] = sectors[i] = 0;
+                    continue;
+                }
+                used.set(offsets[i], offsets[i] + sectors[i]);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public RegionFile(File f, int capacity) throws IOException {
+        this(f, capacity, new CompressionSettings(CompressionType.Fast));
+    }
+
+    protected static int sectorsFor(int bytes) {
+        return (bytes + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    protected ByteBuffer readFully(int length, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    protected void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf, position + buf.position());
+    }
+
+    protected void checkKey(int key) {
+        if (key < 0 || key >= capacity) throw new IndexOutOfBoundsException("Key " + key + " outside of region capacity " + capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized void setCompression(CompressionSettings compression) {
+        this.compression = compression;
+    }
+
+    public synchronized boolean contains(int key) {
+        checkKey(key);
+        return sectors[key] > 0;
+    }
+
+    /**
+     * @return the document stored at <code>key</code> or <code>null</code> if there is none
+     */
+    public CompoundTag read(int key) throws IOException {
+        byte[] data = readBytes(key);
+        if (data == null) return null;
+        return NBT.read(new ByteArrayInputStream(data), CompressionType.Uncompressed);
+    }
+
+    /**
+     * @return the stored, possibly compressed bytes of the entry or <code>null</code> if there is none
+     */
+    public synchronized byte[] readBytes(int key) throws IOException {
+        checkKey(key);
+        if (sectors[key] <= 0) return null;
+
+        long position = (long) offsets[key] * SECTOR_SIZE;
+        int length = readFully(4, position).getInt();
+        if (length < 0 || length > sectors[key] * SECTOR_SIZE - 4) throw new IOException("Corrupt region entry " + key);
+        return readFully(length, position + 4).array();
+    }
+
+    /**
+     * Serializes <code>data</code> with the compression of this region and stores it at <code>key</code>
+     */
+    public void write(int key, CompoundTag data) throws IOException {
+        CompressionSettings compression;
+        synchronized (this) {
+            compression = this.compression;
+        }
+        write(key, data, compression);
+    }
+
+    public void write(int key, CompoundTag data, CompressionSettings compression) throws IOException {
+        checkKey(key);
+        OptimizedByteArrayOutputStream baos = new OptimizedByteArrayOutputStream(SECTOR_SIZE);
+        baos.write(new byte[4]);
+        NBT.write(baos, data, compression);
+        byte[] buf = baos.getBuffer();
+        ByteBuffer.wrap(buf).putInt(0, baos.size() - 4);
+        writeBytes(key, ByteBuffer.wrap(buf, 0, baos.size()));
+    }
+
+    /**
+     * Stores the document at the first free key
+     *
+     * @return the key or <code>-1</code> if the region is full
+     */
+    public int append(CompoundTag data) throws IOException {
+        int key;
+        synchronized (this) {
+            key = firstFreeKey();
+            if (key == -1) return -1;
+            // reserve the key until written
+            sectors[key] = -1;
+        }
+        try {
+            write(key, data);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (sectors[key] == -1) sectors[key] = 0;
+            }
+            throw e;
+        }
+        return key;
+    }
+
+    protected int firstFreeKey() {
+        for (int i = 0; i < capacity; i++)
+            if (sectors[i] == 0) return i;
+        return -1;
+    }
+
+    /**
+     * Writes an entry consisting of its length and payload, reusing its sectors if it still fits
+     */
+    protected synchronized void writeBytes(int key, ByteBuffer entry) throws IOException {
+        int needed = sectorsFor(entry.remaining());
+        int offset = offsets[key];
+
+        if (sectors[key] > 0) used.clear(offset, offset + sectors[key]);
+        if (sectors[key] <= 0 || needed > sectors[key]) offset = allocate(needed);
+
+        writeFully(entry, (long) offset * SECTOR_SIZE);
+        used.set(offset, offset + needed);
+        setSlot(key, offset, needed);
+    }
+
+    /**
+     * @return the first sector of a free run of <code>count</code> sectors, growing the file if there is none. A free
+     *         run at the end of the file is grown instead of appending after it
+     */
+    protected int allocate(int count) {
+        int start = used.nextClearBit(headerSectors);
+        while (start < sectorCount) {
+            int end = used.nextSetBit(start);
+            if (end == -1 || end >= sectorCount) {
+                sectorCount = Math.max(sectorCount, start + count);
+                return start;
+            }
+            if (end - start >= count) return start;
+            start = used.nextClearBit(end);
+        }
+        sectorCount = start + count;
+        return start;
+    }
+
+    protected void setSlot(int key, int offset, int count) throws IOException {
+        offsets[key] = offset;
+        sectors[key] = count;
+        ByteBuffer slot = ByteBuffer.allocate(8);
+        slot.putInt(offset).putInt(count).flip();
+        writeFully(slot, HEADER_SIZE + key * 8L);
+    }
+
+    public synchronized boolean delete(int key) throws IOException {
+        checkKey(key);
+        if (sectors[key] <= 0) return false;
+        used.clear(offsets[key], offsets[key] + sectors[key]);
+        setSlot(key, 0, 0);
+        return true;
+    }
+
+    /**
+     * Closes the first gap between entries, by moving the last entry fitting into it or else by sliding the entry
+     * following it down. Entries are never overwritten in place, so a crash in between loses no data.
+     *
+     * @return <code>false</code> if there was no gap left
+     */
+    public synchronized boolean compactStep() throws IOException {
+        int start = used.nextClearBit(headerSectors);
+        int end = used.nextSetBit(start);
+        if (end == -1) {
+            truncate();
+            return false;
+        }
+
+        int fit = -1, next = -1;
+        for (int i = 0; i < capacity; i++) {
+            if (sectors[i] <= 0 || offsets[i] < end) continue;
+            if (offsets[i] == end) next = i;
+            if (sectors[i] <= end - start && (fit == -1 || offsets[i] > offsets[fit])) fit = i;
+        }
+
+        if (fit != -1) {
+            move(fit, start);
+        } else {
+            // the following entry overlaps its target, take a detour through the end of the file
+            move(next, allocate(sectors[next]));
+            move(next, start);
+        }
+        truncate();
+        return true;
+    }
+
+    protected void move(int key, int offset) throws IOException {
+        long position = (long) offsets[key] * SECTOR_SIZE;
+        ByteBuffer data = readFully(4 + readFully(4, position).getInt(), position);
+        writeFully(data, (long) offset * SECTOR_SIZE);
+        used.clear(offsets[key], offsets[key] + sectors[key]);
+        used.set(offset, offset + sectors[key]);
+        setSlot(key, offset, sectors[key]);
+    }
+
+    protected void truncate() throws IOException {
+        int end = Math.max(headerSectors, used.length());
+        if (end < sectorCount) {
+            sectorCount = end;
+            channel.truncate((long) end * SECTOR_SIZE);
+        }
+    }
+
+    /**
+     * Compacts the file step by step, so other threads can keep reading and writing in between
+     */
+    public void compact() throws IOException {
+        while (compactStep()) {}
+    }
+
+    /**
+     * Runs {@link #compact()} on <code>executor</code>
+     */
+    public Future<?> compactInBackground(ExecutorService executor) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                compact();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return the size of all sectors not used by any entry, in bytes
+     */
+    public synchronized long wastedBytes() {
+        return (long) (sectorCount - used.cardinality()) * SECTOR_SIZE;
+    }
+
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Buffered input stream computing the xxHash64 of exactly the bytes consumed from it, not of the bytes buffered ahead.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class XXHashInputStream extends InputStream {
+    protected final InputStream in;
+    protected final StreamingXXHash64 hash;
+    protected final byte[] buf;
+    protected int count;
+    protected int pos;
+    /**
+     * Start of the consumed bytes in <code>buf</code> not yet added to the hash
+     */
+    protected int hashed;
+
+    public XXHashInputStream(InputStream in) {
+        this(in, 8192);
+    }
+
+    public XXHashInputStream(InputStream in, int bufferSize) {
+        this.in = in;
+        hash = IOUtils.getXXHash().newStreamingHash64(0);
+        buf = new byte[bufferSize];
+    }
+
+    protected void updateHash() {
+        if (pos > hashed) {
+            hash.update(buf, hashed, pos - hashed);
+            hashed = pos;
+        }
+    }
+
+    protected boolean fill() throws IOException {
+        updateHash();
+        int n = in.read(buf, 0, buf.length);
+        pos = hashed = 0;
+        count = Math.max(n, 0);
+        return n > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == count && !fill()) return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == count) {
+            if (len >= buf.length) {
+                updateHash();
+                int n = in.read(b, off, len);
+                if (n > 0) hash.update(b, off, n);
+                return n;
+            }
+            if (!fill()) return -1;
+        }
+        int n = Math.min(len, count - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return count - pos + in.available();
+    }
+
+    /**
+     * @return the hash of all bytes consumed so far
+     */
+    public long getValue() {
+        updateHash();
+        return hash.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Buffered output stream computing the xxHash64 of everything written through it. The hash is updated per buffer
+ * instead of per byte, so small writes like {@link java.io.DataOutputStream#writeInt(int)} stay cheap.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class XXHashOutputStream extends OutputStream {
+    protected final OutputStream out;
+    protected final StreamingXXHash64 hash;
+    protected final byte[] buf;
+    protected int count;
+
+    /**
+     * @param out the stream to forward to, may be <code>null</code> to only compute the hash
+     */
+    public XXHashOutputStream(OutputStream out) {
+        this(out, 8192);
+    }
+
+    public XXHashOutputStream(OutputStream out, int bufferSize) {
+        this.out = out;
+        hash = IOUtils.getXXHash().newStreamingHash64(0);
+        buf = new byte[bufferSize];
+    }
+
+    protected void flushBuffer() throws IOException {
+        if (count > 0) {
+            hash.update(buf, 0, count);
+            if (out != null) out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) flushBuffer();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            flushBuffer();
+            hash.update(b, off, len);
+            if (out != null) out.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count) flushBuffer();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * @return the hash of all bytes written so far
+     */
+    public long getValue() throws IOException {
+        flushBuffer();
+        return hash.getValue();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        if (out != null) out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (out != null) out.close();
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.dakror.common.libgdx.io.NBT.ByteArrayTag;
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.CompressionSettings;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+import de.dakror.common.libgdx.io.NBT.DoubleTag;
+import de.dakror.common.libgdx.io.NBT.IntArrayTag;
+import de.dakror.common.libgdx.io.NBT.IntTag;
+import de.dakror.common.libgdx.io.NBT.ListTag;
+import de.dakror.common.libgdx.io.NBT.LongTag;
+import de.dakror.common.libgdx.io.NBT.StringTag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * Stress test for the per-thread codecs: many threads write and re-read distinct documents at the same time through
+ * {@link NBT#get()}, and every result has to match the document and the bytes produced by a single thread.
+ *
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTConcurrencyTest {
+    static final int THREADS = 8;
+    static final int ROUNDS = 25;
+
+    static final CompressionSettings[] SETTINGS = {
+            new CompressionSettings(CompressionType.Uncompressed),
+            new CompressionSettings(CompressionType.Fast).hashFooter(true),
+            new CompressionSettings(CompressionType.Small),
+            new CompressionSettings(CompressionType.FastParallel),
+            new CompressionSettings(CompressionType.Uncompressed).compact(true)
+    };
+
+    /**
+     * Builds the document of a thread and round, the same seed always yields the same document
+     */
+    static CompoundTag document(long seed) {
+        Random r = new Random(seed);
+        CompoundTag root = new CompoundTag("doc" + seed);
+        root.add(new LongTag("seed", seed));
+        root.add(new StringTag("name", "document " + Long.toHexString(r.nextLong())));
+
+        ListTag entities = new ListTag("entities", TagType.Compound);
+        for (int i = 0, n = 10 + r.nextInt(50); i < n; i++) {
+            CompoundTag e = new CompoundTag();
+            e.add(new IntTag("id", r.nextInt()));
+            e.add(new DoubleTag("x", r.nextDouble()));
+            e.add(new StringTag("type", "type" + r.nextInt(8)));
+            ListTag tags = new ListTag("tags", TagType.Int);
+            for (int j = 0, m = r.nextInt(5); j < m; j++)
+                tags.add(new IntTag(null, r.nextInt(100)));
+            e.add(tags);
+            entities.add(e);
+        }
+        root.add(entities);
+
+        int[] ints = new int[r.nextInt(4096)];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = r.nextInt();
+        root.add(new IntArrayTag("ints", ints));
+
+        byte[] bytes = new byte[r.nextInt(4096)];
+        r.nextBytes(bytes);
+        root.add(new ByteArrayTag("bytes", bytes));
+        return root;
+    }
+
+    static byte[] write(CompoundTag tag, CompressionSettings settings) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        NBT.write(baos, tag, settings);
+        return baos.toByteArray();
+    }
+
+    static CompoundTag read(byte[] data, CompressionSettings settings) throws IOException {
+        return NBT.read(new ByteArrayInputStream(data), settings.type);
+    }
+
+    @Test
+    public void concurrentRoundTrips() throws Exception {
+        final int count = THREADS * ROUNDS;
+        final byte[][][] written = new byte[count][SETTINGS.length][];
+        final byte[][][] rewritten = new byte[count][SETTINGS.length][];
+
+        // reference results of a single thread
+        for (int i = 0; i < count; i++) {
+            CompoundTag doc = document(i);
+            for (int s = 0; s < SETTINGS.length; s++) {
+                written[i][s] = write(doc, SETTINGS[s]);
+                rewritten[i][s] = write(read(written[i][s], SETTINGS[s]), SETTINGS[s]);
+            }
+        }
+
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int checked = 0;
+                        for (int round = 0; round < ROUNDS; round++) {
+                            int i = round * THREADS + thread;
+                            CompoundTag doc = document(i);
+                            for (int s = 0; s < SETTINGS.length; s++) {
+                                byte[] data = write(doc, SETTINGS[s]);
+                                assertArrayEquals("document " + i + ", settings " + s, written[i][s], data);
+
+                                CompoundTag read = read(data, SETTINGS[s]);
+                                assertEquals(doc, read);
+                                assertArrayEquals("document " + i + ", settings " + s, rewritten[i][s], write(read, SETTINGS[s]));
+                                checked++;
+                            }
+                        }
+                        return checked;
+                    }
+                }));
+            }
+
+            int checked = 0;
+            for (Future<Integer> f : results)
+                checked += f.get(5, TimeUnit.MINUTES);
+            assertEquals(count * SETTINGS.length, checked);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
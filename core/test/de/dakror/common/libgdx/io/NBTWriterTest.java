@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2017 Maximilian Stark | Dakror <mail@dakror.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package de.dakror.common.libgdx.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.dakror.common.libgdx.io.NBT.CompoundTag;
+import de.dakror.common.libgdx.io.NBT.CompressionType;
+import de.dakror.common.libgdx.io.NBT.FloatTag;
+import de.dakror.common.libgdx.io.NBT.IntArrayTag;
+import de.dakror.common.libgdx.io.NBT.IntTag;
+import de.dakror.common.libgdx.io.NBT.ListTag;
+import de.dakror.common.libgdx.io.NBT.StringTag;
+import de.dakror.common.libgdx.io.NBT.TagType;
+
+/**
+ * @author Maximilian Stark | Dakror
+ */
+public class NBTWriterTest {
+    static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static CompoundTag read(ByteArrayOutputStream baos, CompressionType compression) throws IOException {
+        return NBT.read(new ByteArrayInputStream(baos.toByteArray()), compression);
+    }
+
+    @Test
+    public void streamedDocumentReadsAsTree() throws IOException {
+        CompoundTag expected = new CompoundTag("world");
+        expected.add(new IntTag("version", 3));
+        expected.add(new StringTag("name", "Grüße"));
+        expected.add(new IntArrayTag("ids", new int[] { 1, 2, 3 }));
+        ListTag entities = new ListTag("entities", TagType.Compound);
+        for (int i = 0; i < 2; i++) {
+            CompoundTag e = new CompoundTag();
+            e.add(new FloatTag("x", i));
+            entities.add(e);
+        }
+        expected.add(entities);
+
+        for (CompressionType compression : CompressionType.values()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            NBTWriter w = new NBTWriter(baos, compression);
+            w.beginCompound("world")
+                    .writeInt("version", 3)
+                    .writeString("name", "Grüße")
+                    .writeIntArray("ids", new int[] { 1, 2, 3 })
+                    .beginList("entities", TagType.Compound, 2)
+                    .beginCompound().writeFloat("x", 0).end()
+                    .beginCompound().writeFloat("x", 1).end()
+                    .end()
+                    .end();
+            w.close();
+
+            assertEquals(expected, read(baos, compression));
+        }
+    }
+
+    /**
+     * Lengths are written as unsigned short, so names and strings of up to 65535 bytes have to survive a round trip
+     */
+    @Test
+    public void longStrings() throws IOException {
+        String name = repeat('n', 40000);
+        String value = repeat('v', 0xFFFF);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        NBTWriter w = new NBTWriter(baos, CompressionType.Uncompressed);
+        w.beginCompound("root").writeString(name, value).end();
+        w.close();
+        assertEquals(value, read(baos, CompressionType.Uncompressed).String(name, null));
+
+        CompoundTag tag = new CompoundTag("root");
+        tag.add(new StringTag(name, value));
+        baos = new ByteArrayOutputStream();
+        NBT.write(baos, tag, CompressionType.Uncompressed);
+        assertEquals(tag, read(baos, CompressionType.Uncompressed));
+    }
+}